@@ -994,6 +994,27 @@ public class Util {
     return hex((short)(value >> 16)) + hex((short)value);
   }
 
+  /**
+   * Returns the SHA-1 digest of the remaining content of a buffer as a Hexadecimal String.
+   * The position of the buffer is not changed.
+   *
+   * @param buffer The buffer to digest
+   * @return The Hexadecimal digest String
+   */
+  public static String digest(java.nio.ByteBuffer buffer) {
+    try {
+      java.security.MessageDigest digest = java.security.MessageDigest.getInstance("SHA-1");
+      digest.update(buffer.duplicate());
+      byte[] bytes = digest.digest();
+      StringBuffer buff = new StringBuffer(bytes.length * 2);
+      for (int i = 0; i < bytes.length; i++)
+        buff.append(hex(bytes[i]));
+      return buff.toString();
+    } catch (java.security.NoSuchAlgorithmException e) {
+      throw new RuntimeException(e.getMessage());
+    }
+  }
+
   /**
    * Read a packed unsigned long from an array of bytes.
    * This will throw an ArrayIndexOutOfBoundsException if it runs out of data.
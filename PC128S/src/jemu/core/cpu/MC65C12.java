@@ -1,9 +1,8 @@
 package jemu.core.cpu;
 
+import java.nio.ByteBuffer;
 import jemu.core.Util;
 import jemu.core.device.Register;
-import jemu.system.pc128s.PC128S;
-import jemu.system.pc128s.PC128SMemory;
 
 /**
  * Title:        JEMU
@@ -32,6 +31,12 @@ public class MC65C12 extends Processor {
   protected static final int FN = 0x80;
   
   protected static final int BIT_MASK = ~(FN | FV | FZ);
+  
+  // Idle loop detection limits
+  protected static final int IDLE_LOOP_SIZE  = 32;      // Maximum bytes in a backward branch loop
+  protected static final int IDLE_LOOP_STEPS = 32;      // Maximum instructions in a loop (inc. calls)
+  protected static final int IO_START        = 0xfc00;  // Reads of I/O pages are volatile
+  protected static final int IO_END          = 0xff00;
 
   protected int A;
   protected int X;
@@ -45,27 +50,116 @@ public class MC65C12 extends Processor {
   protected boolean ready = true;
   protected int interrupt;
   protected int steps = 0;
+  protected int clockMultiplier = 1;    // Processor cycles for each cycle of the devices
+  protected int clockCount = 0;         // Processor cycles into the current device cycle
   public boolean vis20k = false;
+  protected int[] shadowBanks = null;   // Non-zero for 4K pages whose code sees shadow RAM
   public boolean trace = false;
   
+  // A short backward branch loop which neither changes memory nor reads I/O can only change
+  // when an interrupt is taken. One iteration is recorded, then replayed by cycle count alone.
+  // Writes which store the value already in memory (eg. the same return address pushed by a
+  // JSR on each pass) do not change anything, so polling through subroutines is allowed.
+  protected boolean idleDetect = true;                  // Idle loop detection enabled
+  protected boolean idleWatch = false;                  // Recording an iteration
+  protected boolean idleHold = false;                   // Instruction held off interrupts (branch)
+  protected int idleStart;                              // Address of first instruction in loop
+  protected int idleSteps;                              // Number of instructions recorded
+  protected long idleCycles;                            // Processor cycles at start of instruction
+  protected int[] idleLength = new int[IDLE_LOOP_STEPS];
+  protected boolean[] idleHeld = new boolean[IDLE_LOOP_STEPS];
+  protected int[] idlePC = new int[IDLE_LOOP_STEPS];
+  protected int[] idleA = new int[IDLE_LOOP_STEPS];
+  protected int[] idleX = new int[IDLE_LOOP_STEPS];
+  protected int[] idleY = new int[IDLE_LOOP_STEPS];
+  protected int[] idleS = new int[IDLE_LOOP_STEPS];
+  protected int[] idleP = new int[IDLE_LOOP_STEPS];
+  protected int[] idleMask = new int[IDLE_LOOP_STEPS];
+  
   public MC65C12(long cyclesPerSecond) {
     super("MC65C12",cyclesPerSecond);
   }
   
+  /**
+   * Sets the 4K pages from which code reads and writes shadow RAM, as vis20k, or null if
+   * there are none. The array is read at each instruction so may be changed in place.
+   */
+  public void setShadowBanks(int[] value) {
+    shadowBanks = value;
+    vis20k = false;
+  }
+  
   public void reset() {
     A = X = Y = S = P = 0xff;
     ready = true;
+    idleWatch = false;
     interruptMask = NMI_MASK | INT_MASK;
     // interruptPending = 0; ???
     PC = readWord(0xfffc);
   }
   
-  // This is copied to test interrupts at the correct stage
+  public void saveState(ByteBuffer buffer) {
+    buffer.putLong(cycles);
+    buffer.putInt(interruptPending);
+    buffer.putInt(interruptMask);
+    buffer.putInt(interrupt);
+    buffer.put((byte)A).put((byte)X).put((byte)Y).put((byte)S).put((byte)P);
+    buffer.putShort((short)PC);
+    putBoolean(buffer,ready);
+    putBoolean(buffer,vis20k);
+    buffer.putInt(clockCount);
+  }
+  
+  public void loadState(ByteBuffer buffer) {
+    cycles = buffer.getLong();
+    interruptPending = buffer.getInt();
+    interruptMask = buffer.getInt();
+    interrupt = buffer.getInt();
+    A = buffer.get() & 0xff;
+    X = buffer.get() & 0xff;
+    Y = buffer.get() & 0xff;
+    S = buffer.get() & 0xff;
+    P = buffer.get() & 0xff;
+    PC = buffer.getShort() & 0xffff;
+    ready = getBoolean(buffer);
+    vis20k = getBoolean(buffer);
+    clockCount = Math.min(buffer.getInt(),clockMultiplier - 1);
+    idleWatch = idleHold = false;
+  }
+  
+  // This is copied to test interrupts at the correct stage. The devices, and the cycle count,
+  // move on once for each clockMultiplier processor cycles.
   public final void cycle() {
     interrupt = interruptPending;
-    cycles++;
-    if (cycleDevice != null)
-      cycleDevice.cycle();
+    if (++clockCount >= clockMultiplier) {
+      clockCount = 0;
+      cycles++;
+      if (cycleDevice != null)
+        cycleDevice.cycle();
+    }
+  }
+  
+  /**
+   * Runs the processor the given number of times as fast as the devices it drives, which
+   * stay on their own clock, as does getCycles. Input logs keep the value they were recorded
+   * with, and stamp their events with getClockCount as well as getCycles.
+   */
+  public void setClockMultiplier(int value) {
+    clockMultiplier = Math.max(value,1);
+    idleWatch = false;
+  }
+  
+  public int getClockMultiplier() {
+    return clockMultiplier;
+  }
+  
+  public int getClockCount() {
+    return clockCount;
+  }
+  
+  // Cycles run by the processor itself, for timing its own instructions
+  protected final long getClockCycles() {
+    return cycles * clockMultiplier + clockCount;
   }
   
   public final void setReady(boolean value) {
@@ -74,6 +168,8 @@ public class MC65C12 extends Processor {
   
   public final int readByte(int address) {
     while (!ready) cycle();
+    if (idleWatch && address >= IO_START && address < IO_END)
+      idleWatch = false;
     int result = memory.readByte(address);
     cycle();
     return result;
@@ -104,12 +200,16 @@ public class MC65C12 extends Processor {
   }
   
   public final int writeByte(int addr, int value) {
+    if (idleWatch && (addr >= IO_START && addr < IO_END || memory.readByte(addr) != (value & 0xff)))
+      idleWatch = false;
     int result = memory.writeByte(addr,value);
     cycle();
     return result;
   }
   
   public final void push(int value) {
+    if (idleWatch && memory.readByte(0x100 + S) != (value & 0xff))
+      idleWatch = false;
     memory.writeByte(0x100 + S,value);
     S = (S - 1) & 0xff;
     cycle();
@@ -209,14 +309,119 @@ public class MC65C12 extends Processor {
   }
   
   public final void step() {
-	if ((interrupt & interruptMask) != 0)
+    if (eventRequested) {
+      eventRequested = false;
+      eventDevice.event(EVENT_BOUNDARY);
+    }
+	if ((interrupt & interruptMask) != 0) {
+      idleWatch = false;
       doInterrupt();
+	}
     else {
-    	vis20k=((PC128SMemory)((PC128S)memory).getMemory()).ramBank[PC>>12]!=0;
+        if (trapping && (breakMap[PC >> 3] & (0x01 << (PC & 0x07))) != 0) {
+          idleWatch = false;   // Loops through a trap are not replayed
+          vis20k = shadowBanks != null && shadowBanks[PC >> 12] != 0;
+          if (trap(PC))
+            return;
+        }
+        if (idleWatch && idleRecord())
+          return;
+    	vis20k = shadowBanks != null && shadowBanks[PC >> 12] != 0;
         step(fetch());
     }
   }
   
+  public void runTo(int address) {
+    // The replayed loop would not stop at an address inside it
+    boolean detect = idleDetect;
+    setIdleDetect(false);
+    try {
+      super.runTo(address);
+    } finally {
+      setIdleDetect(detect);
+    }
+  }
+  
+  public void setIdleDetect(boolean value) {
+    idleDetect = value;
+    idleWatch = false;
+  }
+  
+  public boolean isIdleDetect() {
+    return idleDetect;
+  }
+
+  public void memoryChanged() {
+    // A loop being recorded may read what has changed
+    idleWatch = false;
+  }
+  
+  protected final void idleWatch(int address) {
+    idleWatch = (interruptMask & NMI_MASK) != 0;   // Not within an NMI handler
+    idleStart = address;
+    idleSteps = 0;
+  }
+  
+  // Called at each instruction boundary while watching a loop. Returns true if the
+  // loop was replayed and the processor state has changed.
+  protected final boolean idleRecord() {
+    if (idleSteps > 0) {
+      idleLength[idleSteps - 1] = (int)(getClockCycles() - idleCycles);
+      idleHeld[idleSteps - 1] = idleHold;
+      if (PC == idleStart) {
+        idleWatch = false;
+        return A == idleA[0] && X == idleX[0] && Y == idleY[0] && S == idleS[0] && P == idleP[0] &&
+          ready && !stopped && idleSkip();
+      }
+    }
+    if (idleSteps == IDLE_LOOP_STEPS)
+      idleWatch = false;
+    else {
+      idlePC[idleSteps] = PC;
+      idleA[idleSteps] = A;
+      idleX[idleSteps] = X;
+      idleY[idleSteps] = Y;
+      idleS[idleSteps] = S;
+      idleP[idleSteps] = P;
+      idleMask[idleSteps] = interruptMask;
+      idleCycles = getClockCycles();
+      idleHold = false;
+      idleSteps++;
+    }
+    return false;
+  }
+  
+  // Replays the recorded iteration, one instruction length at a time, until an interrupt
+  // would be taken, an event is requested, the processor is stopped or the runUntil cycle is
+  // reached. Events requested by devices are then seen at the same cycle as without. Memory is
+  // unchanged by the loop, so every iteration is identical to the recorded one, including
+  // its cycle count.
+  protected final boolean idleSkip() {
+    int count = idleSteps;
+    int index = 0;
+    boolean replayed = false;
+    while (!stopped && !eventRequested && cycles < stopCycle &&
+      (interrupt & idleMask[index]) == 0) {
+      cycle(idleLength[index]);
+      if (idleHeld[index])
+        interrupt = 0;
+      steps++;
+      if (++index == count)
+        index = 0;
+      replayed = true;
+    }
+    if (index != 0) {
+      PC = idlePC[index];
+      A = idleA[index];
+      X = idleX[index];
+      Y = idleY[index];
+      S = idleS[index];
+      P = idleP[index];
+      interruptMask = idleMask[index];
+    }
+    return replayed;
+  }
+
   public final void illegal(int opcode) {
     System.out.println("Illegal Opcode: " + Util.hex((byte)opcode) + " at " + Util.hex((short)(PC - 1)));
   }
@@ -618,11 +823,16 @@ public class MC65C12 extends Processor {
     readPC();                                     // 3 cycles used
     interrupt = 0;                                // delay by 1 cycle
     int newPC = (PC + rel) & 0xffff;
+    if (rel < 0 && idleDetect && newPC < PC && PC - newPC <= IDLE_LOOP_SIZE &&
+      (!idleWatch || newPC != idleStart))
+      idleWatch(newPC);
     PC = (PC & 0xff00) | ((PC + rel) & 0xff);
     if (PC != newPC) {
       fetch();                                    // 4 cycles used
       PC = newPC;
     }
+    else
+      idleHold = true;
   }
   
   protected final void jmpind() {
@@ -686,11 +896,18 @@ public class MC65C12 extends Processor {
   }
   
   public void setPC(int value) {
+    idleWatch = false;
     PC = value & 0xffff;
   }
   
   public void setStatus(int value) {
     setP(value & 0xff);
   }
+  
+  /** Returns from a subroutine as RTS does, for a trap which has done the work of one */
+  public void returnFromSubroutine() {
+    fetch();
+    step(0x60);
+  }
 
 }
\ No newline at end of file
@@ -15,8 +15,22 @@ import jemu.core.device.*;
 
 public abstract class Processor extends Device {
   
+  /**
+   * Code run in place of, or before, the instruction at an address. Traps are called between
+   * instructions, so may change registers and memory as a routine at the address would.
+   */
+  public interface Trap {
+
+    /** Returns true if it has done the work of the code at the address and changed PC */
+    public boolean trap(Processor cpu, int address);
+
+  }
+  
   // Breakpoint map
   public static final int BREAK_MAP_MASK = 0x1fff;
+  
+  // Event sent to the event device
+  public static final int EVENT_BOUNDARY = 1;
 
   // Memory for processor
   protected Device memory;
@@ -35,6 +49,10 @@ public abstract class Processor extends Device {
   
   // Interrupt mask
   protected int interruptPending = 0;
+  
+  // Device told when an instruction boundary is reached, if requested
+  protected Device eventDevice = null;
+  protected volatile boolean eventRequested = false;  // May be set by other threads
 
   // Total number of cycles executed
   protected long cycles = 0;
@@ -42,12 +60,21 @@ public abstract class Processor extends Device {
   // Cycles per second of CPU
   protected long cyclesPerSecond;
 
-  // Processor stopped
-  protected boolean stopped = false;
+  // Processor stopped, which may be set by other threads and is seen at the next instruction
+  // boundary
+  protected volatile boolean stopped = false;
+
+  // Cycle at which runUntil stops, which idle loop replay must not pass
+  protected long stopCycle = Long.MAX_VALUE;
   
-  // Breakpoint map
+  // Breakpoint map, with a bit for each address with a trap
   protected byte[] breakMap = new byte[BREAK_MAP_MASK + 1];
   
+  // Traps by address, only looked up when the break map bit is set
+  protected Trap[] traps = new Trap[0x10000];
+  protected int trapCount = 0;
+  protected boolean trapping = false;
+  
   // Breakpoints list
   protected Breakpoint[] breakPoints = new Breakpoint[0];
 
@@ -76,28 +103,93 @@ public abstract class Processor extends Device {
     return cycles;
   }
 
+  /**
+   * Returns the processor cycles run into the current cycle, for processors which run faster
+   * than the devices they drive, so that instruction boundaries sharing a cycle can be told
+   * apart.
+   */
+  public int getClockCount() {
+    return 0;
+  }
+
   public abstract void step();
 
   public abstract void stepOver();
 
+  /** Runs until stopped. A stop made before this is called is kept unless resume is called. */
   public void run() {
-    stopped = false;
     do {
       step();
     } while(!stopped);
   }
 
   public void runTo(int address) {
-    stopped = false;
     do {
       step();
     } while(!stopped && getProgramCounter() != address);
   }
 
-  public synchronized void stop() {
+  /**
+   * Steps until the given cycle has been reached, stopping at the first instruction boundary
+   * on or after it just as stop() would have done, so a run stopped there can be repeated.
+   */
+  public void runUntil(long cycle) {
+    stopCycle = cycle;
+    try {
+      while (cycles < cycle)
+        step();
+    } finally {
+      stopCycle = Long.MAX_VALUE;
+    }
+  }
+
+  public void stop() {
     stopped = true;
   }
 
+  public boolean isStopped() {
+    return stopped;
+  }
+
+  /** Clears a stop, so that run continues until stopped again */
+  public void resume() {
+    stopped = false;
+  }
+
+  /**
+   * Called after memory has been changed other than by the processor, between instructions,
+   * so that nothing assuming it unchanged is kept.
+   */
+  public void memoryChanged() { }
+
+  /**
+   * Sets the trap at an address, or removes it if null. Processors which do not check the
+   * break map ignore traps.
+   */
+  public void setTrap(int address, Trap trap) {
+    address &= 0xffff;
+    if (traps[address] != null)
+      trapCount--;
+    traps[address] = trap;
+    if (trap == null)
+      breakMap[address >> 3] &= ~(0x01 << (address & 0x07));
+    else {
+      trapCount++;
+      breakMap[address >> 3] |= 0x01 << (address & 0x07);
+    }
+    trapping = trapCount != 0;
+  }
+
+  public Trap getTrap(int address) {
+    return traps[address & 0xffff];
+  }
+
+  /** Calls the trap at an address set in the break map, returning true if it ran instead */
+  protected final boolean trap(int address) {
+    Trap trap = traps[address];
+    return trap != null && trap.trap(this,address);
+  }
+
   public final int readWord(int addr) {
     return readByte(addr) + (readByte((addr + 1) & 0xffff) << 8);
   }
@@ -163,6 +255,18 @@ public abstract class Processor extends Device {
     interruptDevice = value;
   }
   
+  public final void setEventDevice(Device value) {
+    eventDevice = value;
+  }
+  
+  /**
+   * Requests a call to event(EVENT_BOUNDARY) on the event device before the next instruction
+   * starts, where the state of the whole machine can be saved or replaced.
+   */
+  public final void requestEvent() {
+    eventRequested = eventDevice != null;
+  }
+  
   @Override
   public void setInterrupt(int mask) {
     interruptPending |= mask;
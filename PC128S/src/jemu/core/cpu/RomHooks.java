@@ -0,0 +1,100 @@
+package jemu.core.cpu;
+
+import java.util.zip.*;
+import jemu.core.device.*;
+
+/**
+ * High level emulation of routines in a known ROM. Each entry point hooked is a trap which
+ * does the work of the routine in Java, leaving the registers, flags and memory as the ROM
+ * code would, and charges the cycles the ROM code would have taken, or a percentage of them
+ * for a turbo mode.
+ *
+ * Hooks are written for one build of a ROM, recognised by the CRC32 of its image, and only
+ * run while the code at the entry point is that of the ROM, so the same addresses in other
+ * ROMs paged in run as usual. An interrupt arriving during a hooked routine is taken once it
+ * has returned, so a computer must use the same hooks when an input log is replayed.
+ *
+ * @author
+ */
+public abstract class RomHooks implements Processor.Trap {
+
+  protected static final int CHECK_BYTES = 4;   // Bytes of the entry point compared
+
+  protected long crc;
+  protected int base;
+  protected int[] entries;
+  protected byte[] rom;
+  protected Processor cpu;
+  protected Device memory;
+  protected int percent = 100;
+
+  /** Creates hooks for the ROM with a CRC32, run at the base address */
+  public RomHooks(long crc, int base, int[] entries) {
+    this.crc = crc;
+    this.base = base;
+    this.entries = entries;
+  }
+
+  /** Returns true if the image is the ROM build the hooks are for, which is then kept */
+  public boolean recognise(byte[] image) {
+    CRC32 check = new CRC32();
+    check.update(image);
+    if (check.getValue() != crc)
+      return false;
+    rom = image;
+    return true;
+  }
+
+  public boolean isRecognised() {
+    return rom != null;
+  }
+
+  public void install(Processor cpu) {
+    this.cpu = cpu;
+    memory = cpu.getMemoryDevice();
+    for (int i = 0; i < entries.length; i++)
+      cpu.setTrap(entries[i],this);
+  }
+
+  public void remove() {
+    for (int i = 0; cpu != null && i < entries.length; i++)
+      if (cpu.getTrap(entries[i]) == this)
+        cpu.setTrap(entries[i],null);
+  }
+
+  /** Sets the percentage of the cycles of the ROM code charged, 100 for exact timing */
+  public void setCyclePercent(int value) {
+    percent = value;
+  }
+
+  public int getCyclePercent() {
+    return percent;
+  }
+
+  public boolean trap(Processor processor, int address) {
+    for (int i = 0; i < CHECK_BYTES; i++)
+      if (memory.readByte(address + i) != (rom[address - base + i] & 0xff))
+        return false;
+    return call(address);
+  }
+
+  /**
+   * Does the work of the routine at an entry point and leaves it as the ROM code would,
+   * returning false to run the ROM code instead.
+   */
+  protected abstract boolean call(int address);
+
+  /** Charges the cycles taken by the ROM code, or the turbo percentage of them */
+  protected void charge(int cycles) {
+    cpu.cycle(percent == 100 ? cycles : cycles * percent / 100);
+  }
+
+  protected int readByte(int address) {
+    return memory.readByte(address & 0xffff);
+  }
+
+  protected void writeByte(int address, int value) {
+    memory.writeByte(address & 0xffff,value & 0xff);
+  }
+
+}
@@ -63,7 +63,7 @@ public class Z80 extends Processor {
   protected static final int FLAG_MASK_INI   = 0xe8;
 
   // Parity values
-  protected static int[] PARITY = new int[256];
+  protected static final int[] PARITY = new int[256];
   static {
     for (int i = 0; i < 256; i++) {
       int p = (i & 0x01) == 0 ? FPV : 0;
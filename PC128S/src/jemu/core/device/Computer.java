@@ -7,10 +7,13 @@ import java.io.*;
 import java.util.zip.*;
 import java.lang.reflect.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
 import jemu.core.*;
 import jemu.core.cpu.*;
 import jemu.core.device.floppy.*;
+import jemu.core.device.keyboard.*;
 import jemu.core.device.memory.*;
 import jemu.ui.*;
 import jemu.util.diss.*;
@@ -45,15 +48,17 @@ public abstract class Computer extends Device implements Runnable {
   public static final int RUN       = 3;
 
   public static final int MAX_FRAME_SKIP = 20;
+  public static final int WARP_FRAME_SKIP = 10;   // Frames skipped between each rendered frame in warp
   public static final int MAX_FILE_SIZE  = 1024 * 1024;  // 1024K maximum
 
-  public static boolean debugTiming = false;
-
   protected Applet applet;
-  protected Thread thread = new Thread(this);
-  protected boolean stopped = false;
+  protected Thread thread = new Thread(this);   // Started by the first action other than STOP
+  protected boolean debugTiming = false;
+  // The action requested and whether the thread is running one are only changed holding the
+  // monitor of thread, which each side waits on for the other
+  protected volatile boolean stopped = false;
   protected int action = STOP;
-  protected boolean running = false;
+  protected volatile boolean running = false;
   protected boolean waiting = false;
   protected long startTime;
   protected long startCycles;
@@ -67,6 +72,16 @@ public abstract class Computer extends Device implements Runnable {
   protected int mode = STOP;
   protected ComputerTimer timer;
   protected long maxResync = 200;
+  protected boolean warp = false;
+  protected boolean warped = false;               // Warp state seen by syncProcessor
+  protected int warpFrameSkip = WARP_FRAME_SKIP;
+  protected boolean writeBack = false;
+  protected boolean warmStart = true;
+  protected Rewind rewind = null;
+  protected RunAhead runAhead = null;
+  protected InputLog inputLog = null;
+  protected KeyQueue keyEvents = new KeyQueue();   // Key codes to apply, inverted if released
+  protected Vector typeEvents = new Vector();      // Text to type, as InputLog events
   
   // Devices used in this computer
   protected Vector devices = new Vector();
@@ -90,7 +105,6 @@ public abstract class Computer extends Device implements Runnable {
     this.applet = applet;
     this.name = name;
 //    thread.setPriority(Thread.MIN_PRIORITY);
-    thread.start();
   }
 
   protected void setBasePath(String path) {
@@ -159,12 +173,11 @@ public abstract class Computer extends Device implements Runnable {
     return offs;
   }
   
-  protected static byte[] SKIP_BUFFER = new byte[1024];
-  
   protected void skipStream(InputStream stream, int size) throws Exception {
+    byte[] buffer = new byte[Math.min(size, 1024)];
     while (size > 0) {
       int bytes = size > 1024 ? 1024 : size;
-      stream.read(SKIP_BUFFER, 0, bytes);
+      stream.read(buffer, 0, bytes);
       size -= bytes;
     }
   }
@@ -207,6 +220,29 @@ public abstract class Computer extends Device implements Runnable {
     }
     return buffer;
   }
+  
+  /**
+   * Returns the contents of a file. Local files which are not zipped are mapped into memory
+   * rather than read, others are read using getFile.
+   */
+  public ByteBuffer mapFile(String name) {
+    File file = new File(name);
+    if (!name.toLowerCase().endsWith(".zip") && file.isFile()) {
+      try {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+          System.out.println("Map: " + name);
+          return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+            Math.min(raf.length(), MAX_FILE_SIZE));
+        } finally {
+          raf.close();
+        }
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }
+    return ByteBuffer.wrap(getFile(name));
+  }
 
   public void setDisplay(Display value) {
     display = value;
@@ -240,6 +276,140 @@ public abstract class Computer extends Device implements Runnable {
     }
   }
   
+  /**
+   * Queues a key change to be made at the next instruction boundary, so that it reaches the
+   * emulation at a known cycle. Changes must only be queued from one thread, normally the
+   * AWT event thread, and are dropped if too many are waiting.
+   */
+  protected void queueKey(int code, boolean pressed) {
+    if (keyEvents.offer(pressed ? code : ~code))
+      getProcessor().requestEvent();
+  }
+  
+  /** Makes the queued key changes. This must be called between instructions. */
+  protected void applyKeys() {
+    while (!keyEvents.isEmpty()) {
+      int code = keyEvents.take();
+      boolean pressed = code >= 0;
+      if (!pressed)
+        code = ~code;
+      logInput(pressed ? InputLog.KEY_PRESSED : InputLog.KEY_RELEASED,code,null);
+      applyKey(code,pressed);
+    }
+    while (typeEvents.size() > 0) {
+      InputLog.Event event = (InputLog.Event)typeEvents.elementAt(0);
+      typeEvents.removeElementAt(0);
+      logInput(InputLog.TYPE_TEXT,event.code,event.name);
+      applyText(event.name,event.code != 0);
+    }
+  }
+  
+  protected void applyKey(int code, boolean pressed) { }
+  
+  /**
+   * Types text on the keyboard of the emulated computer, as fast as its operating system takes
+   * it, from the next instruction boundary. Typed directly, the text is put straight into the
+   * keyboard buffer where the computer has one. This may be called from any thread.
+   */
+  public void typeText(String text, boolean direct) {
+    typeEvents.addElement(new InputLog.Event(0,InputLog.TYPE_TEXT,direct ? 1 : 0,text));
+    getProcessor().requestEvent();
+  }
+  
+  public boolean isTypingSupported() {
+    return false;
+  }
+  
+  protected void applyText(String text, boolean direct) { }
+  
+  /**
+   * Sends the characters the operating system writes to an output stream and reads those
+   * it reads from an input stream instead of the keyboard, for running without a window.
+   * Either may be null, and both null disconnects them. This must be called between
+   * instructions.
+   */
+  public void setConsole(OutputStream out, InputStream in) { }
+
+  /**
+   * Serves files from a host directory ahead of those on disc, or stops if the name is null.
+   * This must be called between instructions.
+   */
+  public void setHostDirectory(String name) { }
+
+  /**
+   * Runs known routines of the ROMs in Java in place of their code, or stops doing so. This
+   * must be called between instructions.
+   */
+  public void setHighLevel(boolean value) { }
+
+  public boolean isHighLevel() {
+    return false;
+  }
+  
+  /** Sets the percentage of the cycles of the code charged for routines run in Java */
+  public void setHighLevelCycles(int percent) { }
+  
+  public int getHighLevelCycles() {
+    return 100;
+  }
+  
+  protected void logInput(int type, int code, String name) {
+    InputLog log = inputLog;
+    if (log != null)
+      log.add(getProcessor().getCycles(),getProcessor().getClockCount(),type,code,name);
+  }
+  
+  /** Makes a change of input read from an InputLog. This must be called between instructions. */
+  public void replayInput(InputLog.Event event) throws Exception {
+    switch (event.type) {
+      case InputLog.KEY_PRESSED:
+      case InputLog.KEY_RELEASED:
+        applyKey(event.code,event.type == InputLog.KEY_PRESSED);
+        break;
+        
+      case InputLog.LOAD_FILE:
+        loadFile(event.code,event.name);
+        break;
+        
+      case InputLog.RESET:
+        reset();
+        break;
+        
+      case InputLog.TYPE_TEXT:
+        applyText(event.name,event.code != 0);
+        break;
+    }
+  }
+  
+  /** Starts recording the input from the current state */
+  public void startRecording() {
+    boolean run = running;
+    stop();
+    Snapshot snapshot = new Snapshot();
+    snapshot.save(this);
+    inputLog = new InputLog(snapshot);
+    inputLog.saveSettings(this);
+    if (run)
+      start();
+  }
+  
+  /** Stops recording the input, returning the log or null if none was being recorded */
+  public InputLog stopRecording() {
+    boolean run = running;
+    stop();
+    InputLog result = inputLog;
+    if (result != null)
+      result.setEnd(getProcessor().getCycles());
+    inputLog = null;
+    if (run)
+      start();
+    return result;
+  }
+  
+  public boolean isRecording() {
+    return inputLog != null;
+  }
+  
   public abstract void keyPressed(KeyEvent e);
   
   public abstract void keyReleased(KeyEvent e);
@@ -270,25 +440,34 @@ public abstract class Computer extends Device implements Runnable {
     setAction(STEP_OVER);
   }
 
+  /**
+   * Requests an action of the emulation thread. Unless the action is RUN, a running computer
+   * is first stopped at the next instruction boundary, and this returns once it has stopped.
+   */
   public synchronized void setAction(int value) {
-    if (running && value != RUN) {
-      action = STOP;
-      //System.out.println(this + " Stopping " + getProcessor());
-      getProcessor().stop();
-      display.setPainted(true);
-      while(running) {
-        try {
-          //System.out.println("stopping...");
-          Thread.sleep(200);
-        } catch(Exception e) {
-          e.printStackTrace();
+    // Tested holding the monitor, so the thread cannot take up a RUN in between
+    synchronized(thread) {
+      if (value != RUN && (running || action == RUN)) {
+        action = STOP;          // A RUN not yet taken up never starts
+        if (running) {
+          //System.out.println(this + " Stopping " + getProcessor());
+          getProcessor().stop();
+          display.setPainted(true);
+          thread.notifyAll();   // Ends a wait for pacing
+          while(running) {
+            try {
+              thread.wait();
+            } catch(InterruptedException e) {
+              e.printStackTrace();
+            }
+          }
         }
       }
-    }
-    //System.out.println("Entering synchronized");
-    synchronized(thread) {
+      // Computers only ever run by a Farm or Replay never need a thread of their own
+      if (value != STOP && thread.getState() == Thread.State.NEW)
+        thread.start();
       action = value;
-      thread.notify();
+      thread.notifyAll();
     }
   }
 
@@ -349,10 +528,70 @@ public abstract class Computer extends Device implements Runnable {
     return filePath;
   }
 
+  public void saveState(ByteBuffer buffer) {
+    for (int i = 0; i < devices.size(); i++)
+      ((Device)devices.elementAt(i)).saveState(buffer);
+  }
+
+  public void loadState(ByteBuffer buffer) {
+    for (int i = 0; i < devices.size(); i++)
+      ((Device)devices.elementAt(i)).loadState(buffer);
+    // The cycle count has changed, so pacing starts again from here
+    startCycles = getProcessor().getCycles();
+    startTime = timer != null ? timer.getCount() : System.currentTimeMillis();
+  }
+  
+  /**
+   * Saves the state without the contents of memory, for callers which keep those themselves
+   * from the pages written.
+   */
+  public void saveDeviceState(ByteBuffer buffer) {
+    Memory memory = getMemory();
+    memory.setContentsSaved(false);
+    try {
+      saveState(buffer);
+    } finally {
+      memory.setContentsSaved(true);
+    }
+  }
+  
+  public void loadDeviceState(ByteBuffer buffer) {
+    Memory memory = getMemory();
+    memory.setContentsSaved(false);
+    try {
+      loadState(buffer);
+    } finally {
+      memory.setContentsSaved(true);
+    }
+  }
+
+  /** Takes a snapshot of the computer, stopping it while the snapshot is taken */
+  public Snapshot getSnapshot() {
+    boolean run = running;
+    stop();
+    Snapshot result = new Snapshot();
+    result.save(this);
+    if (run)
+      start();
+    return result;
+  }
+
+  public void setSnapshot(Snapshot value) throws Exception {
+    boolean run = running;
+    stop();
+    try {
+      value.restore(this);
+    } finally {
+      if (run)
+        start();
+    }
+  }
+
   public void reset() {
     //System.out.println(this + " Reset");
     boolean run = running;
     stop();
+    logInput(InputLog.RESET,0,null);
     getProcessor().reset();
     if (run)
       start();
@@ -361,29 +600,30 @@ public abstract class Computer extends Device implements Runnable {
   public void run() {
     while(!stopped) {
       try {
-        if (action == STOP) {
-          synchronized(thread) {
-            //System.out.println(this + " Waiting");
+        synchronized(thread) {
+          //System.out.println(this + " Waiting");
+          while (action == STOP && !stopped)
             thread.wait();
-            //System.out.println(this + " Not Waiting");
-          }
+          if (stopped)
+            break;
+          mode = action;
+          action = STOP;
+          running = true;
+          // A stop requested from here on is seen by the processor
+          getProcessor().resume();
         }
-        if (action != STOP) {
-          try {
-            //System.out.println(this + " Running");
-            running = true;
-            synchronized(thread) {
-              mode = action;
-              action = STOP;
-            }
-            startCycles = getProcessor().getCycles();
-            startTime = timer != null ? timer.getCount() : System.currentTimeMillis();
-            emulate(mode);
-          } finally {
+        try {
+          //System.out.println(this + " Running");
+          startCycles = getProcessor().getCycles();
+          startTime = timer != null ? timer.getCount() : System.currentTimeMillis();
+          emulate(mode);
+        } finally {
+          synchronized(thread) {
             running = false;
-            //System.out.println(this + " Not running");
-            fireActionEvent();
+            thread.notifyAll();
           }
+          //System.out.println(this + " Not running");
+          fireActionEvent();
         }
       } catch(Exception e) {
         e.printStackTrace();
@@ -447,14 +687,26 @@ public abstract class Computer extends Device implements Runnable {
   }
   
   protected void syncProcessor() {
-    if (timer != null)
+    if (warp != warped) {
+      // Restart pacing from here rather than catching up, skipping or resyncing the timer
+      warped = warp;
+      setFrameSkip(0);
+      startCycles = getProcessor().getCycles();
+      if (timer != null) timer.getUpdates();
+      startTime = timer != null ? timer.getCount() : System.currentTimeMillis();
+    }
+    else if (warp) {
+      startCycles = getProcessor().getCycles();
+      setFrameSkip(frameSkip >= warpFrameSkip ? 0 : frameSkip + 1);
+    }
+    else if (timer != null)
       syncProcessor(timer.getUpdates(), timer.getDeviation());
     else
       syncProcessor((((getProcessor().getCycles() - startCycles) * 2000 /
         getProcessor().getCyclesPerSecond()) + 1) / 2, 200);
   }
   
-  @SuppressWarnings( { "SleepWhileHoldingLock", "CallToThreadDumpStack" })
+  @SuppressWarnings("CallToThreadDumpStack")
   protected void syncProcessor(long count, long deviation) {
     startTime += count;
     startCycles = getProcessor().getCycles();
@@ -486,7 +738,9 @@ public abstract class Computer extends Device implements Runnable {
         long start = System.currentTimeMillis();
         long last = time;
         int cnt = 0;
-        while ((time = timer != null ? timer.getCount() : System.currentTimeMillis()) < startTime) {
+        Processor cpu = getProcessor();
+        while ((time = timer != null ? timer.getCount() : System.currentTimeMillis()) < startTime &&
+          !cpu.isStopped()) {
           if (timer != null && System.currentTimeMillis() - start > maxResync) {
             timer.resync();
             System.out.println("Resync 2");
@@ -494,7 +748,10 @@ public abstract class Computer extends Device implements Runnable {
             break;
           }
           else
-            Thread.sleep(1);
+            synchronized(thread) {
+              if (!cpu.isStopped())
+                thread.wait(1);
+            }
           if (debugTiming && last != time)
             System.out.print("/" + (time - last));
           last = time;
@@ -512,10 +769,35 @@ public abstract class Computer extends Device implements Runnable {
   public void setMaxResync(long value) {
     maxResync = value;
   }
+  
+  /** Prints the timing of each frame while paced */
+  public void setDebugTiming(boolean value) {
+    debugTiming = value;
+  }
 
   public void setFrameSkip(int value) {
     frameSkip = value;
   }
+  
+  /**
+   * Runs the emulation as fast as possible. Pacing is disabled, sound output is discarded
+   * and only one frame in every warpFrameSkip + 1 is rendered.
+   */
+  public void setWarp(boolean value) {
+    warp = value;
+  }
+  
+  public boolean isWarp() {
+    return warp;
+  }
+  
+  public void setWarpFrameSkip(int value) {
+    warpFrameSkip = Math.max(0, value);
+  }
+  
+  public int getWarpFrameSkip() {
+    return warpFrameSkip;
+  }
 
   public void displayLostFocus() { }
   
@@ -540,5 +822,106 @@ public abstract class Computer extends Device implements Runnable {
   public Drive[] getFloppyDrives() {
     return null;
   }
+  
+  public void setTurboDisc(boolean value) { }
+  
+  public boolean isTurboDisc() {
+    return false;
+  }
+  
+  /**
+   * Runs the processor value times as fast as the rest of the computer, whose video, timers,
+   * discs and sound keep their own speed.
+   */
+  public void setClockMultiplier(int value) { }
+  
+  public int getClockMultiplier() {
+    return 1;
+  }
+  
+  /**
+   * Connects a second processor, which runs on its own thread, or disconnects it. This
+   * resets the computer. Snapshots, input logs, rewinding and running ahead only cover the
+   * computer itself, so they are not exact while a second processor is connected.
+   */
+  public void setCoprocessor(boolean value) { }
+  
+  /**
+   * When set, discs loaded afterwards have sectors written by the emulation saved back to
+   * their image files. Otherwise writes are only kept in memory.
+   */
+  public void setWriteBack(boolean value) {
+    writeBack = value;
+  }
+  
+  public boolean isWriteBack() {
+    return writeBack;
+  }
+  
+  /**
+   * When set, initialise starts from a cached state taken after an earlier boot with the same
+   * ROMs where there is one, otherwise it keeps the state once this boot has finished.
+   */
+  public void setWarmStart(boolean value) {
+    warmStart = value;
+  }
+  
+  public boolean isWarmStart() {
+    return warmStart;
+  }
+  
+  public int getFrameRate() {
+    return 50;
+  }
+  
+  /**
+   * Keeps the state of each frame for the given number of seconds, so that the computer can be
+   * stepped back with rewind. No states are kept if it is zero.
+   */
+  public void setRewindTime(int seconds) {
+    boolean run = running;
+    stop();
+    rewind = seconds == 0 ? null : new Rewind(this,seconds * getFrameRate());
+    if (run)
+      start();
+  }
+  
+  public Rewind getRewind() {
+    return rewind;
+  }
+  
+  /**
+   * Shows the video the given number of frames ahead of the emulation, to hide the latency of
+   * input. The computer runs normally if it is zero.
+   */
+  public void setRunAheadFrames(int frames) {
+    boolean run = running;
+    stop();
+    runAhead = frames == 0 ? null : new RunAhead(this,frames);
+    if (run)
+      start();
+  }
+  
+  public RunAhead getRunAhead() {
+    return runAhead;
+  }
+  
+  /** Steps back the given number of frames, returning false if there are none kept */
+  public boolean rewind(int frames) {
+    if (rewind == null)
+      return false;
+    boolean run = running;
+    stop();
+    try {
+      boolean result = rewind.back(frames);
+      // What was recorded after the frame no longer happened
+      if (result && inputLog != null)
+        inputLog.truncate(getProcessor().getCycles(),getProcessor().getClockCount());
+      return result;
+    } finally {
+      if (run)
+        start();
+    }
+  }
 
 }
\ No newline at end of file
@@ -1,5 +1,7 @@
 package jemu.core.device;
 
+import java.nio.ByteBuffer;
+
 /**
  * Title:        JEMU
  * Description:  The Java Emulation Platform
@@ -44,6 +46,14 @@ public abstract class Device {
   
   public int event(int id) { return 0; }
   
+  /**
+   * Writes the state of the device which changes as it runs, to be restored by loadState.
+   * Connections to other devices, settings and ROM contents are not included.
+   */
+  public void saveState(ByteBuffer buffer) { }
+  
+  public void loadState(ByteBuffer buffer) { }
+  
   public void setName(String value) {
     name = value;
   }
@@ -73,6 +83,24 @@ public abstract class Device {
       ((buffer[offs + 2] & 0xff) << 16) | ((buffer[offs + 3] & 0xff) << 24);
   }
 
+  public static void putBoolean(ByteBuffer buffer, boolean value) {
+    buffer.put((byte)(value ? 1 : 0));
+  }
+  
+  public static boolean getBoolean(ByteBuffer buffer) {
+    return buffer.get() != 0;
+  }
+  
+  public static void putInts(ByteBuffer buffer, int[] values) {
+    buffer.asIntBuffer().put(values);
+    buffer.position(buffer.position() + values.length * 4);
+  }
+  
+  public static void getInts(ByteBuffer buffer, int[] values) {
+    buffer.asIntBuffer().get(values);
+    buffer.position(buffer.position() + values.length * 4);
+  }
+
   public Register[] getRegisters() {
     return NO_REGISTERS;
   }
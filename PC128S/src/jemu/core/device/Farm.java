@@ -0,0 +1,151 @@
+package jemu.core.device;
+
+import java.util.*;
+import java.util.concurrent.*;
+import jemu.core.cpu.*;
+import jemu.ui.*;
+
+/**
+ * Runs many headless computers in one process on a bounded pool of threads, for running a
+ * library of software in parallel. Each computer runs a slice of frames at a time and then
+ * yields its thread to the next one waiting, so all of them progress at the same rate however
+ * many there are. Each has a quota of cycles, after which it is finished.
+ *
+ * Computers in a farm are only ever run by it, so they must not be started themselves and
+ * then have no thread of their own.
+ *
+ * @author
+ */
+public class Farm {
+
+  public static final int SLICE_FRAMES = 5;
+
+  /**
+   * A computer run by a farm. Subclasses may look at the computer after each slice to finish
+   * it early, for instance once a program has printed its result.
+   */
+  public static class Instance implements Runnable {
+
+    protected Farm farm;
+    protected Computer computer;
+    protected long end;
+    protected boolean finished = false;
+    protected Exception error = null;
+
+    /** Creates an instance which runs the computer for the given number of cycles */
+    public Instance(Computer computer, long cycles) {
+      this.computer = computer;
+      end = computer.getProcessor().getCycles() + cycles;
+    }
+
+    public Computer getComputer() {
+      return computer;
+    }
+
+    public boolean isFinished() {
+      return finished;
+    }
+
+    /** Returns the exception which stopped the computer, or null if it ran to the end */
+    public Exception getError() {
+      return error;
+    }
+
+    public void run() {
+      try {
+        Processor cpu = computer.getProcessor();
+        cpu.runUntil(Math.min(cpu.getCycles() + farm.getSliceCycles(computer),end));
+        if (cpu.getCycles() < end && !sliceRun()) {
+          farm.pool.execute(this);
+          return;
+        }
+      } catch (Exception e) {
+        error = e;
+      }
+      finished = true;
+      farm.finished(this);
+    }
+
+    /** Called after each slice, returning true to finish before the quota is used */
+    protected boolean sliceRun() {
+      return false;
+    }
+
+  }
+
+  protected ForkJoinPool pool;
+  protected int sliceFrames = SLICE_FRAMES;
+  protected Vector instances = new Vector();
+  protected int running = 0;
+
+  public Farm() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  public Farm(int threads) {
+    // Async mode takes tasks in the order submitted, so each instance waits its turn
+    pool = new ForkJoinPool(threads,ForkJoinPool.defaultForkJoinWorkerThreadFactory,null,true);
+  }
+
+  /** Creates a computer which is not shown, rendering few frames and without pacing */
+  public static Computer createComputer(String name) throws Exception {
+    Computer computer = Computer.createComputer(null,name);
+    Display display = new Display();
+    computer.setLarge(false);
+    display.setImageSize(computer.getDisplaySize(false),computer.getDisplayScale(false));
+    computer.setDisplay(display);
+    computer.initialise();
+    computer.setWarp(true);
+    return computer;
+  }
+
+  /** Adds an instance, which starts running straight away */
+  public synchronized Instance add(Instance instance) {
+    instance.farm = this;
+    instances.addElement(instance);
+    running++;
+    pool.execute(instance);
+    return instance;
+  }
+
+  public Instance add(Computer computer, long cycles) {
+    return add(new Instance(computer,cycles));
+  }
+
+  public Vector getInstances() {
+    return instances;
+  }
+
+  protected synchronized void finished(Instance instance) {
+    running--;
+    notifyAll();
+  }
+
+  /** Waits for all the instances added to finish */
+  public synchronized void waitFor() throws InterruptedException {
+    while (running > 0)
+      wait();
+  }
+
+  public synchronized int getRunning() {
+    return running;
+  }
+
+  public void setSliceFrames(int value) {
+    sliceFrames = Math.max(1,value);
+  }
+
+  public int getSliceFrames() {
+    return sliceFrames;
+  }
+
+  protected long getSliceCycles(Computer computer) {
+    return computer.getProcessor().getCyclesPerSecond() * sliceFrames / computer.getFrameRate();
+  }
+
+  /** Stops the threads once the instances running have finished */
+  public void shutdown() {
+    pool.shutdown();
+  }
+
+}
@@ -1,5 +1,7 @@
 package jemu.core.device;
 
+import java.nio.ByteBuffer;
+
 /**
  * Title:        JEMU
  * Description:  The Java Emulation Platform
@@ -106,6 +108,19 @@ public class IOPort extends Device {
     return input;
   }
   
+  public void saveState(ByteBuffer buffer) {
+    buffer.put((byte)readMask).put((byte)writeMask).put((byte)input).put((byte)output);
+    putBoolean(buffer,latched);
+  }
+
+  public void loadState(ByteBuffer buffer) {
+    readMask = buffer.get() & 0xff;
+    writeMask = buffer.get() & 0xff;
+    input = buffer.get() & 0xff;
+    output = buffer.get() & 0xff;
+    latched = getBoolean(buffer);
+  }
+  
   public void setLatched(boolean value) {
     latched = value;
   }
@@ -0,0 +1,193 @@
+package jemu.core.device;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A record of the input to a Computer, from a saved starting state, with each change stamped
+ * with the processor cycle at which it was made. Changes are only made between instructions,
+ * so replaying them at the same cycles repeats the emulation exactly. Where the processor
+ * runs faster than the devices, several instructions may start in one cycle, so each change
+ * is also stamped with the processor's clock count within the cycle.
+ *
+ * The settings which change what the emulation does without being part of its state, Turbo
+ * Disc, the ROM routines run in Java and the clock multiplier, are kept with the starting
+ * snapshot and put back before replaying.
+ *
+ * Log files have a header, the starting snapshot and the settings, then the cycle recording
+ * ended and the events in order.
+ *
+ * @author
+ */
+public class InputLog {
+
+  public static final int MAGIC   = 0x4a454d49;  // JEMI
+  public static final int VERSION = 1;
+  public static final String EXTENSION = ".inp";
+
+  public static final int KEY_PRESSED  = 0;
+  public static final int KEY_RELEASED = 1;
+  public static final int LOAD_FILE    = 2;    // code is the file type
+  public static final int RESET        = 3;
+  public static final int TYPE_TEXT    = 4;    // name is the text, code 1 if typed directly
+
+  public static class Event {
+
+    public long cycle;
+    public int clock;       // Processor clock count within the cycle
+    public int type;
+    public int code;
+    public String name;
+
+    public Event(long cycle, int type, int code, String name) {
+      this(cycle,0,type,code,name);
+    }
+
+    public Event(long cycle, int clock, int type, int code, String name) {
+      this.cycle = cycle;
+      this.clock = clock;
+      this.type = type;
+      this.code = code;
+      this.name = name;
+    }
+
+  }
+
+  protected Snapshot start;
+  protected Vector events = new Vector();
+  protected long end = 0;
+  protected boolean turboDisc = false;
+  protected boolean highLevel = false;
+  protected int highLevelCycles = 100;
+  protected int clockMultiplier = 1;
+
+  public InputLog(Snapshot start) {
+    this.start = start;
+  }
+
+  public Snapshot getStart() {
+    return start;
+  }
+
+  /** Keeps the settings of the computer the log is recorded from */
+  public void saveSettings(Computer computer) {
+    turboDisc = computer.isTurboDisc();
+    highLevel = computer.isHighLevel();
+    highLevelCycles = computer.getHighLevelCycles();
+    clockMultiplier = computer.getClockMultiplier();
+  }
+
+  /** Puts the settings back, between instructions, before the log is replayed */
+  public void restoreSettings(Computer computer) {
+    computer.setTurboDisc(turboDisc);
+    computer.setHighLevelCycles(highLevelCycles);
+    computer.setHighLevel(highLevel);
+    computer.setClockMultiplier(clockMultiplier);
+  }
+
+  public synchronized void add(long cycle, int clock, int type, int code, String name) {
+    events.addElement(new Event(cycle,clock,type,code,name));
+    end = cycle;
+  }
+
+  /**
+   * Drops the events after a cycle and clock count, when the computer has been stepped back
+   * to them
+   */
+  public synchronized void truncate(long cycle, int clock) {
+    while (events.size() > 0) {
+      Event event = (Event)events.lastElement();
+      if (event.cycle < cycle || event.cycle == cycle && event.clock <= clock)
+        break;
+      events.removeElementAt(events.size() - 1);
+    }
+    end = cycle;
+  }
+
+  public int size() {
+    return events.size();
+  }
+
+  public Event getEvent(int index) {
+    return (Event)events.elementAt(index);
+  }
+
+  public long getEnd() {
+    return end;
+  }
+
+  public void setEnd(long value) {
+    end = value;
+  }
+
+  public synchronized void write(OutputStream stream) throws IOException {
+    DataOutputStream out = new DataOutputStream(stream);
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    ByteArrayOutputStream state = new ByteArrayOutputStream();
+    start.write(state);
+    out.writeInt(state.size());
+    state.writeTo(out);
+    out.writeBoolean(turboDisc);
+    out.writeBoolean(highLevel);
+    out.writeInt(highLevelCycles);
+    out.writeInt(clockMultiplier);
+    out.writeLong(end);
+    out.writeInt(events.size());
+    for (int i = 0; i < events.size(); i++) {
+      Event event = (Event)events.elementAt(i);
+      out.writeLong(event.cycle);
+      out.writeInt(event.clock);
+      out.writeByte(event.type);
+      out.writeInt(event.code);
+      out.writeUTF(event.name == null ? "" : event.name);
+    }
+    out.flush();
+  }
+
+  public void write(File file) throws IOException {
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+    try {
+      write(out);
+    } finally {
+      out.close();
+    }
+  }
+
+  public static InputLog read(InputStream stream) throws Exception {
+    DataInputStream in = new DataInputStream(stream);
+    if (in.readInt() != MAGIC)
+      throw new Exception("Not an input log");
+    int version = in.readInt();
+    if (version != VERSION)
+      throw new Exception("Unsupported input log version " + version);
+    byte[] state = new byte[in.readInt()];
+    in.readFully(state);
+    InputLog result = new InputLog(Snapshot.read(new ByteArrayInputStream(state)));
+    result.turboDisc = in.readBoolean();
+    result.highLevel = in.readBoolean();
+    result.highLevelCycles = in.readInt();
+    result.clockMultiplier = in.readInt();
+    long end = in.readLong();
+    for (int count = in.readInt(); count > 0; count--) {
+      long cycle = in.readLong();
+      int clock = in.readInt();
+      int type = in.readByte();
+      int code = in.readInt();
+      String name = in.readUTF();
+      result.add(cycle,clock,type,code,name.length() == 0 ? null : name);
+    }
+    result.end = end;
+    return result;
+  }
+
+  public static InputLog read(File file) throws Exception {
+    InputStream in = new BufferedInputStream(new FileInputStream(file));
+    try {
+      return read(in);
+    } finally {
+      in.close();
+    }
+  }
+
+}
@@ -0,0 +1,382 @@
+package jemu.core.device;
+
+import java.nio.*;
+import jemu.core.device.memory.*;
+
+/**
+ * Keeps the states of the most recent frames of a Computer so that it can be stepped back.
+ * A state is recorded once per frame, at an instruction boundary.
+ *
+ * Every keyInterval frames the full state is kept. For the frames in between, only the state
+ * of the devices apart from memory and the pages of memory written during the frame are kept,
+ * each as the exclusive or with the frame before and with runs of unchanged bytes left out.
+ * These deltas apply in either direction, so stepping back from the newest frame only undoes
+ * the pages changed since, while older frames are reached forward from a key frame.
+ *
+ * Records are kept in a ring of a fixed size outside the heap, the oldest being dropped to
+ * make room for new ones. The ring always starts with a key frame.
+ *
+ * @author
+ */
+public class Rewind {
+
+  public static final int KEY_INTERVAL = 50;
+  public static final int CAPACITY     = 16 * 1024 * 1024;
+
+  protected static final int DELTA = 0;
+  protected static final int KEY   = 1;
+
+  protected static final int PAGE_SHIFT = DynamicMemory.PAGE_SHIFT;
+  protected static final int PAGE_SIZE  = DynamicMemory.PAGE_SIZE;
+  protected static final int MIN_SKIP   = 4;   // Shorter unchanged runs are kept in a delta
+
+  protected Computer computer;
+  protected DynamicMemory memory;
+  protected int keyInterval;
+  protected ByteBuffer ring;
+
+  // Frame records in the ring, the oldest at first
+  protected int[] offsets;
+  protected int[] lengths;
+  protected boolean[] keys;
+  protected long[] cycles;
+  protected int first = 0;
+  protected int count = 0;
+  protected int end = 0;
+  protected int sinceKey = 0;
+
+  // The newest frame: the device state and a copy of memory
+  protected byte[] state = new byte[0];
+  protected int stateLength = 0;
+  protected byte[] shadow = null;
+  protected byte[] mem = null;     // The memory shadow is a copy of
+  protected int mark;
+  protected boolean[] restored = new boolean[0];
+
+  // Work buffers, reused by each record
+  protected byte[] work = new byte[0x4000];
+  protected byte[] record = new byte[0x4000];
+  protected int size;
+  protected int pos;
+
+  public Rewind(Computer computer, int frames) {
+    this(computer,frames,KEY_INTERVAL,CAPACITY);
+  }
+
+  public Rewind(Computer computer, int frames, int keyInterval, int capacity) {
+    this.computer = computer;
+    this.keyInterval = keyInterval;
+    memory = (DynamicMemory)computer.getMemory();
+    ring = ByteBuffer.allocateDirect(capacity);
+    // Dropping a key frame drops the deltas after it too, so space is left for those
+    offsets = new int[frames + keyInterval];
+    lengths = new int[offsets.length];
+    keys = new boolean[offsets.length];
+    cycles = new long[offsets.length];
+  }
+
+  /** Returns the number of frames kept */
+  public int getFrames() {
+    return count;
+  }
+
+  /** Returns the number of bytes of the ring used */
+  public int getUsed() {
+    if (count == 0)
+      return 0;
+    int start = offsets[first];
+    return end > start ? end - start : ring.capacity() - start + end;
+  }
+
+  public void clear() {
+    first = count = end = sinceKey = 0;
+    shadow = mem = null;
+  }
+
+  /**
+   * Records the state of the computer as a new frame. This must be called from the emulation
+   * thread between instructions.
+   */
+  public void record() {
+    if (memory.getMemory() != mem)
+      clear();
+    int length = saveDevices();
+    boolean key = count == 0 || sinceKey >= keyInterval || length != stateLength;
+    if (!key) {
+      buildDelta(length);
+      key = !makeRoom();   // Once all before it have gone it must be a key frame
+    }
+    if (key) {
+      buildKey(length);
+      if (size > ring.capacity()) {
+        clear();
+        return;
+      }
+      makeRoom();
+    }
+    int slot = (first + count) % offsets.length;
+    offsets[slot] = end = (ring.capacity() - end < size ? 0 : end);
+    lengths[slot] = size;
+    keys[slot] = key;
+    cycles[slot] = computer.getProcessor().getCycles();
+    ring.clear();
+    ring.position(end);
+    ring.put(record,0,size);
+    end += size;
+    count++;
+    sinceKey = key ? 1 : sinceKey + 1;
+    mark = memory.mark();
+  }
+
+  /**
+   * Steps back the given number of frames, or as far as possible. If the computer has run on
+   * since the newest frame, going back one frame returns to it. Frames after the one restored
+   * are dropped. The computer must be stopped.
+   */
+  public boolean back(int frames) {
+    if (count == 0)
+      return false;
+    int target = count - 1 - frames;
+    if (computer.getProcessor().getCycles() != cycles[(first + count - 1) % offsets.length])
+      target++;
+    restore(Math.max(0,Math.min(count - 1,target)));
+    return true;
+  }
+
+  protected void restore(int target) {
+    // Memory is first returned to the newest frame, which the shadow holds
+    int[] writes = memory.getPageWrites();
+    if (restored.length != writes.length)
+      restored = new boolean[writes.length];
+    for (int page = 0; page < writes.length; page++)
+      restored[page] = writes[page] > mark;
+    int key = target;
+    while (!keys[(first + key) % offsets.length])
+      key--;
+    int newest = count - 1;
+    boolean undo = true;
+    for (int i = target + 1; i <= newest; i++)
+      undo &= !keys[(first + i) % offsets.length];
+    if (undo)
+      for (int i = newest; i > target; i--)
+        applyDelta(i);
+    else {
+      loadKey(key);
+      for (int i = key + 1; i <= target; i++)
+        applyDelta(i);
+    }
+    for (int page = 0; page < restored.length; page++)
+      if (restored[page]) {
+        int offset = page << PAGE_SHIFT;
+        System.arraycopy(shadow,offset,mem,offset,Math.min(PAGE_SIZE,mem.length - offset));
+      }
+    loadDevices();
+    int slot = (first + target) % offsets.length;
+    count = target + 1;
+    end = offsets[slot] + lengths[slot];
+    sinceKey = target - key + 1;
+    mark = memory.mark();
+  }
+
+  protected int saveDevices() {
+    while (true) {
+      try {
+        ByteBuffer buffer = ByteBuffer.wrap(work);
+        computer.saveDeviceState(buffer);
+        return buffer.position();
+      } catch (BufferOverflowException e) {
+        work = new byte[work.length * 2];
+      }
+    }
+  }
+
+  protected void loadDevices() {
+    computer.loadDeviceState(ByteBuffer.wrap(state,0,stateLength));
+  }
+
+  protected void buildKey(int length) {
+    mem = memory.getMemory();
+    if (shadow == null || shadow.length != mem.length)
+      shadow = new byte[mem.length];
+    System.arraycopy(mem,0,shadow,0,mem.length);
+    if (state.length < length)
+      state = new byte[work.length];
+    System.arraycopy(work,0,state,0,length);
+    stateLength = length;
+    while (true) {
+      try {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        buffer.put((byte)KEY).putInt(length).put(work,0,length);
+        computer.saveState(buffer);
+        size = buffer.position();
+        return;
+      } catch (BufferOverflowException e) {
+        record = new byte[record.length * 2];
+      }
+    }
+  }
+
+  protected void buildDelta(int length) {
+    size = 0;
+    ensure(5);
+    record[size++] = DELTA;
+    encode(work,state,0,length);
+    int[] writes = memory.getPageWrites();
+    for (int page = 0; page < writes.length; page++)
+      if (writes[page] > mark) {
+        int start = size;
+        ensure(5);
+        putInt(page);
+        int offset = page << PAGE_SHIFT;
+        if (!encode(mem,shadow,offset,Math.min(PAGE_SIZE,mem.length - offset)))
+          size = start;  // Written but unchanged
+      }
+  }
+
+  protected void loadKey(int index) {
+    read(index);
+    pos = 1;
+    stateLength = getInt();
+    if (state.length < stateLength)
+      state = new byte[stateLength];
+    System.arraycopy(record,pos,state,0,stateLength);
+    pos += stateLength;
+    computer.loadState(ByteBuffer.wrap(record,pos,size - pos));
+    System.arraycopy(mem,0,shadow,0,mem.length);
+  }
+
+  protected void applyDelta(int index) {
+    read(index);
+    pos = 1;
+    decode(state,0,stateLength);
+    while (pos < size) {
+      int page = getInt();
+      int offset = page << PAGE_SHIFT;
+      decode(shadow,offset,Math.min(PAGE_SIZE,mem.length - offset));
+      restored[page] = true;
+    }
+  }
+
+  protected void read(int index) {
+    int slot = (first + index) % offsets.length;
+    size = lengths[slot];
+    if (record.length < size)
+      record = new byte[size];
+    ring.clear();
+    ring.position(offsets[slot]);
+    ring.get(record,0,size);
+  }
+
+  /**
+   * Drops the oldest frames until there is room in the ring for the record built, returning
+   * false if that leaves none.
+   */
+  protected boolean makeRoom() {
+    int capacity = ring.capacity();
+    while (count != 0) {
+      int start = offsets[first];
+      if (count < offsets.length && (end > start ? capacity - end >= size || start >= size :
+        start - end >= size))
+        return true;
+      do {
+        first = (first + 1) % offsets.length;
+        count--;
+      } while (count != 0 && !keys[first]);
+    }
+    end = 0;
+    return false;
+  }
+
+  /**
+   * Writes the exclusive or of the ranges of current and previous as runs of unchanged and
+   * changed bytes, then copies the changes to previous. Returns false if nothing changed.
+   */
+  protected boolean encode(byte[] current, byte[] previous, int offset, int length) {
+    boolean result = false;
+    int i = offset;
+    int limit = offset + length;
+    while (true) {
+      int start = i;
+      while (i < limit && current[i] == previous[i])
+        i++;
+      ensure(10);
+      putCount(i - start);
+      if (i == limit)
+        return result;
+      start = i;
+      while (i < limit) {
+        if (current[i] != previous[i])
+          i++;
+        else {
+          int same = i;
+          while (same < limit && same - i < MIN_SKIP && current[same] == previous[same])
+            same++;
+          if (same - i == MIN_SKIP || same == limit)
+            break;
+          i = same;
+        }
+      }
+      ensure(5 + i - start);
+      putCount(i - start);
+      for (int j = start; j < i; j++) {
+        record[size++] = (byte)(current[j] ^ previous[j]);
+        previous[j] = current[j];
+      }
+      result = true;
+    }
+  }
+
+  protected void decode(byte[] target, int offset, int length) {
+    int i = offset;
+    int limit = offset + length;
+    while (true) {
+      i += getCount();
+      if (i >= limit)
+        return;
+      for (int run = getCount(); run > 0; run--)
+        target[i++] ^= record[pos++];
+    }
+  }
+
+  protected void ensure(int space) {
+    if (size + space > record.length) {
+      byte[] value = new byte[Math.max(record.length * 2,size + space)];
+      System.arraycopy(record,0,value,0,size);
+      record = value;
+    }
+  }
+
+  protected void putInt(int value) {
+    record[size++] = (byte)(value >> 24);
+    record[size++] = (byte)(value >> 16);
+    record[size++] = (byte)(value >> 8);
+    record[size++] = (byte)value;
+  }
+
+  protected int getInt() {
+    int result = ((record[pos] & 0xff) << 24) | ((record[pos + 1] & 0xff) << 16) |
+      ((record[pos + 2] & 0xff) << 8) | (record[pos + 3] & 0xff);
+    pos += 4;
+    return result;
+  }
+
+  // Counts take 7 bits per byte, the top bit set on all but the last
+  protected void putCount(int value) {
+    while (value > 0x7f) {
+      record[size++] = (byte)(value | 0x80);
+      value >>>= 7;
+    }
+    record[size++] = (byte)value;
+  }
+
+  protected int getCount() {
+    int result = 0;
+    for (int shift = 0; ; shift += 7) {
+      int value = record[pos++];
+      result |= (value & 0x7f) << shift;
+      if (value >= 0)
+        return result;
+    }
+  }
+
+}
@@ -0,0 +1,100 @@
+package jemu.core.device;
+
+import java.nio.*;
+import jemu.core.device.memory.*;
+
+/**
+ * Keeps the state of a Computer while it runs ahead of the frame being emulated, so the video
+ * of a later frame can be shown to hide the latency of input, then puts it back.
+ *
+ * Memory is put back from a copy which each save brings up to date with only the pages written
+ * since the last restore, and only the pages written while running ahead are copied back, so
+ * keeping the state costs little more than saving the other devices. Pacing is unaffected.
+ *
+ * Running ahead only helps while it fits in the frame, so the number of frames is reduced
+ * whenever it takes more than half of the frame time on average.
+ *
+ * @author
+ */
+public class RunAhead {
+
+  public static final int AVERAGE_FRAMES = 50;   // Frames the time taken is averaged over
+
+  protected static final int PAGE_SHIFT = DynamicMemory.PAGE_SHIFT;
+  protected static final int PAGE_SIZE  = DynamicMemory.PAGE_SIZE;
+
+  protected Computer computer;
+  protected DynamicMemory memory;
+  protected int frames;
+  protected byte[] shadow = null;
+  protected byte[] mem = null;     // The memory shadow is a copy of
+  protected int mark;
+  protected byte[] state = new byte[0x4000];
+  protected int stateLength;
+  protected long startTime;
+  protected long startCycles;
+  protected long start;
+  protected long time = 0;
+  protected int count = 0;
+
+  public RunAhead(Computer computer, int frames) {
+    this.computer = computer;
+    this.frames = frames;
+    memory = (DynamicMemory)computer.getMemory();
+  }
+
+  public int getFrames() {
+    return frames;
+  }
+
+  /** Saves the state before running ahead. This must be called between instructions. */
+  public void save() {
+    start = System.nanoTime();
+    if (memory.getMemory() != mem) {
+      mem = memory.getMemory();
+      shadow = mem.clone();
+    }
+    else
+      copyWritten(mem,shadow);
+    mark = memory.mark();
+    while (true) {
+      try {
+        ByteBuffer buffer = ByteBuffer.wrap(state);
+        computer.saveDeviceState(buffer);
+        stateLength = buffer.position();
+        break;
+      } catch (BufferOverflowException e) {
+        state = new byte[state.length * 2];
+      }
+    }
+    startTime = computer.startTime;
+    startCycles = computer.startCycles;
+  }
+
+  /** Puts back the state saved by save */
+  public void restore() {
+    copyWritten(shadow,mem);
+    mark = memory.mark();
+    computer.loadDeviceState(ByteBuffer.wrap(state,0,stateLength));
+    computer.startTime = startTime;
+    computer.startCycles = startCycles;
+    time += System.nanoTime() - start;
+    if (++count == AVERAGE_FRAMES) {
+      if (frames > 0 && time / count > 500000000L / computer.getFrameRate()) {
+        frames--;
+        System.out.println("Run ahead reduced to " + frames + " frames");
+      }
+      time = count = 0;
+    }
+  }
+
+  protected void copyWritten(byte[] source, byte[] dest) {
+    int[] writes = memory.getPageWrites();
+    for (int page = 0; page < writes.length; page++)
+      if (writes[page] > mark) {
+        int offset = page << PAGE_SHIFT;
+        System.arraycopy(source,offset,dest,offset,Math.min(PAGE_SIZE,mem.length - offset));
+      }
+  }
+
+}
@@ -0,0 +1,141 @@
+package jemu.core.device;
+
+import java.io.*;
+import java.nio.*;
+import java.util.zip.*;
+
+/**
+ * The saved state of a Computer. Each device writes its own state in turn into one buffer,
+ * which is reused by later saves into the same Snapshot so that taking one allocates nothing.
+ *
+ * Snapshot files have a header giving the format version, computer name and state length,
+ * followed by the deflated state. Only a file of the current version can be restored.
+ *
+ * @author
+ */
+public class Snapshot {
+
+  public static final int MAGIC        = 0x4a454d53;  // JEMS
+  public static final int VERSION      = 4;
+  public static final int INITIAL_SIZE = 0x40000;
+  public static final String EXTENSION = ".snp";
+
+  protected String computer;
+  protected byte[] data;
+  protected int length = 0;
+
+  public Snapshot() {
+    this(INITIAL_SIZE);
+  }
+
+  public Snapshot(int size) {
+    data = new byte[size];
+  }
+
+  /**
+   * Saves the state of a computer. This must be called when it is stopped, or from the
+   * emulation thread itself.
+   */
+  public void save(Computer source) {
+    while (true) {
+      try {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        source.saveState(buffer);
+        length = buffer.position();
+        computer = source.getName();
+        return;
+      } catch (BufferOverflowException e) {
+        data = new byte[data.length * 2];
+      }
+    }
+  }
+
+  /** Restores the state of a computer, with the same conditions as save */
+  public void restore(Computer target) throws Exception {
+    if (!target.getName().equals(computer))
+      throw new Exception("Snapshot is for " + computer);
+    target.loadState(ByteBuffer.wrap(data, 0, length));
+  }
+
+  public String getComputer() {
+    return computer;
+  }
+
+  public int getLength() {
+    return length;
+  }
+
+  /** Returns the state buffer, of which the first getLength() bytes are used */
+  public byte[] getData() {
+    return data;
+  }
+
+  public void write(OutputStream stream) throws IOException {
+    DataOutputStream out = new DataOutputStream(stream);
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeUTF(computer);
+    out.writeInt(length);
+    DeflaterOutputStream deflater = new DeflaterOutputStream(out);
+    deflater.write(data, 0, length);
+    deflater.finish();
+    out.flush();
+  }
+
+  /**
+   * Writes the snapshot to a file on a background thread, which is returned. The state is
+   * copied first, so this Snapshot can be saved into again straight away. The file only
+   * appears once it is complete.
+   */
+  public Thread write(final File file) {
+    final Snapshot copy = new Snapshot(length);
+    System.arraycopy(data, 0, copy.data, 0, length);
+    copy.length = length;
+    copy.computer = computer;
+    Thread thread = new Thread("Snapshot Writer: " + file.getName()) {
+      public void run() {
+        try {
+          File temp = new File(file.getPath() + ".tmp");
+          OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+          try {
+            copy.write(out);
+          } finally {
+            out.close();
+          }
+          file.delete();
+          if (!temp.renameTo(file))
+            throw new IOException("Cannot rename " + temp);
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    };
+    thread.start();
+    return thread;
+  }
+
+  public static Snapshot read(InputStream stream) throws Exception {
+    DataInputStream in = new DataInputStream(stream);
+    if (in.readInt() != MAGIC)
+      throw new Exception("Not a snapshot");
+    int version = in.readInt();
+    if (version != VERSION)
+      throw new Exception("Unsupported snapshot version " + version);
+    String computer = in.readUTF();
+    Snapshot result = new Snapshot(in.readInt());
+    result.computer = computer;
+    result.length = result.data.length;
+    new DataInputStream(new InflaterInputStream(in)).readFully(result.data);
+    return result;
+  }
+
+  public static Snapshot read(File file) throws Exception {
+    InputStream in = new BufferedInputStream(new FileInputStream(file));
+    try {
+      return read(in);
+    } finally {
+      in.close();
+    }
+  }
+
+}
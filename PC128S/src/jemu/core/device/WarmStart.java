@@ -0,0 +1,135 @@
+package jemu.core.device;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import jemu.core.*;
+
+/**
+ * Process-wide cache of computer states taken once booting has finished, so that later
+ * instances can start from one rather than booting again. Each is for a set of ROMs,
+ * identified by a digest of their contents.
+ *
+ * Within a process, ROM sets are also looked up by their file names (with the length and
+ * modification time of local files), so an instance started from a cached state does not
+ * load its ROMs at all. When a directory is set, states are also written there as files
+ * named by the digest, for use by later processes once they have loaded the ROMs.
+ *
+ * @author
+ */
+public class WarmStart {
+
+  public static final String EXTENSION = ".warm";
+
+  protected static Hashtable starts = new Hashtable();  // ROM file key -> WarmStart
+  protected static File directory = null;
+
+  protected String digest;
+  protected byte[][] roms;
+  protected Snapshot snapshot;
+
+  public WarmStart(String digest, byte[][] roms, Snapshot snapshot) {
+    this.digest = digest;
+    this.roms = roms;
+    this.snapshot = snapshot;
+  }
+
+  public String getDigest() {
+    return digest;
+  }
+
+  /** Returns the ROM contents, which must not be changed */
+  public byte[][] getROMs() {
+    return roms;
+  }
+
+  public Snapshot getSnapshot() {
+    return snapshot;
+  }
+
+  /** Sets the directory states are kept in between processes, or null for none */
+  public static void setDirectory(File value) {
+    directory = value;
+  }
+
+  public static File getDirectory() {
+    return directory;
+  }
+
+  public static String getKey(String[] names) {
+    StringBuffer result = new StringBuffer();
+    for (int i = 0; i < names.length; i++) {
+      File file = new File(names[i]);
+      result.append(file.isFile() ? file.getAbsolutePath() + ":" + file.length() + ":" +
+        file.lastModified() : names[i]).append(';');
+    }
+    return result.toString();
+  }
+
+  public static String getDigest(byte[][] roms) {
+    int size = 0;
+    for (int i = 0; i < roms.length; i++)
+      size += roms[i].length;
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    for (int i = 0; i < roms.length; i++)
+      buffer.put(roms[i]);
+    buffer.flip();
+    return Util.digest(buffer);
+  }
+
+  /** Returns the state for the named ROM files if this process already has it */
+  public static synchronized WarmStart get(String key) {
+    return (WarmStart)starts.get(key);
+  }
+
+  /**
+   * Returns the state for the given ROM contents, reading it from the directory if this
+   * process does not have it yet.
+   */
+  public static WarmStart get(String key, byte[][] roms) {
+    String digest = getDigest(roms);
+    synchronized(WarmStart.class) {
+      for (Enumeration e = starts.elements(); e.hasMoreElements(); ) {
+        WarmStart start = (WarmStart)e.nextElement();
+        if (start.digest.equals(digest)) {
+          starts.put(key,start);
+          return start;
+        }
+      }
+    }
+    File file = getFile(digest);
+    if (file != null && file.isFile()) {
+      try {
+        WarmStart result = new WarmStart(digest,roms,Snapshot.read(file));
+        synchronized(WarmStart.class) {
+          starts.put(key,result);
+        }
+        return result;
+      } catch (Exception e) {
+        System.out.println("Cannot read warm start: " + file + ": " + e.getMessage());
+      }
+    }
+    return null;
+  }
+
+  /** Keeps a state, also writing it to the directory in the background */
+  public static void put(String key, WarmStart value) {
+    synchronized(WarmStart.class) {
+      starts.put(key,value);
+    }
+    File file = getFile(value.digest);
+    if (file != null) {
+      file.getParentFile().mkdirs();
+      value.snapshot.write(file);
+    }
+  }
+
+  public static synchronized void clear() {
+    starts.clear();
+  }
+
+  protected static File getFile(String digest) {
+    return directory == null ? null : new File(directory,digest + EXTENSION);
+  }
+
+}
@@ -1,5 +1,6 @@
 package jemu.core.device.crtc;
 
+import java.nio.ByteBuffer;
 import jemu.core.Util;
 import jemu.core.device.Register;
 
@@ -109,6 +110,48 @@ public class Basic6845 extends CRTC {
     setEvents();
   }
   
+  @Override
+  public void saveState(ByteBuffer buffer) {
+    putInts(buffer, reg);
+    putInts(buffer, orig);
+    putInts(buffer, eventMask);
+    putInts(buffer, new int[] { ma, ra, hCC, vCC, selReg, hChars, hSyncStart, hDispEnd,
+      hSyncWidth, hSyncCount, vSyncWidth, vSyncCount, interlaceVideo, scanAdd, maxRaster,
+      frame, maBase, maScreen, vtAdj, halfR0, hDispDelay, cursorMA, cursorStart, cursorEnd,
+      cursorCount, cursorFlash, cursorDelay, cursorWait });
+    putBoolean(buffer, inHSync);
+    putBoolean(buffer, inVSync);
+    putBoolean(buffer, hDisp);
+    putBoolean(buffer, vDisp);
+    putBoolean(buffer, interlace);
+    putBoolean(buffer, cursor);
+  }
+
+  @Override
+  public void loadState(ByteBuffer buffer) {
+    getInts(buffer, reg);
+    getInts(buffer, orig);
+    getInts(buffer, eventMask);
+    int[] values = new int[28];
+    getInts(buffer, values);
+    ma = values[0];           ra = values[1];           hCC = values[2];
+    vCC = values[3];          selReg = values[4];       hChars = values[5];
+    hSyncStart = values[6];   hDispEnd = values[7];     hSyncWidth = values[8];
+    hSyncCount = values[9];   vSyncWidth = values[10];  vSyncCount = values[11];
+    interlaceVideo = values[12]; scanAdd = values[13];  maxRaster = values[14];
+    frame = values[15];       maBase = values[16];      maScreen = values[17];
+    vtAdj = values[18];       halfR0 = values[19];      hDispDelay = values[20];
+    cursorMA = values[21];    cursorStart = values[22]; cursorEnd = values[23];
+    cursorCount = values[24]; cursorFlash = values[25]; cursorDelay = values[26];
+    cursorWait = values[27];
+    inHSync = getBoolean(buffer);
+    inVSync = getBoolean(buffer);
+    hDisp = getBoolean(buffer);
+    vDisp = getBoolean(buffer);
+    interlace = getBoolean(buffer);
+    cursor = getBoolean(buffer);
+  }
+  
   public void setWriteMask(int reg, int mask) {
     wrMask[reg] = mask;
   }
@@ -1,5 +1,7 @@
 package jemu.core.device.crtc;
 
+import java.nio.ByteBuffer;
+
 /**
  * SAA505x Teletext Generator Device Emulation.
  *
@@ -55,6 +57,37 @@ public class SAA505x extends CRTC {
     super("SAA505x");
   }
   
+  public void saveState(ByteBuffer buffer) {
+    putInts(buffer,inks);
+    putInts(buffer,new int[] { current, previous, prev2, prev3, graphics, separated, flashMask,
+      flashCount, flashOn, last, held, row, singleRow, doubleRow, rowAdd, crs, loseDelay });
+    putBoolean(buffer,hold);
+    putBoolean(buffer,doubleNow);
+    putBoolean(buffer,doubleThis);
+    putBoolean(buffer,doubleLast);
+    putBoolean(buffer,lose);
+    putBoolean(buffer,newLose);
+    putBoolean(buffer,dew);
+  }
+  
+  public void loadState(ByteBuffer buffer) {
+    getInts(buffer,inks);
+    int[] values = new int[17];
+    getInts(buffer,values);
+    current = values[0];    previous = values[1];  prev2 = values[2];      prev3 = values[3];
+    graphics = values[4];   separated = values[5]; flashMask = values[6];  flashCount = values[7];
+    flashOn = values[8];    last = values[9];      held = values[10];      row = values[11];
+    singleRow = values[12]; doubleRow = values[13]; rowAdd = values[14];   crs = values[15];
+    loseDelay = values[16];
+    hold = getBoolean(buffer);
+    doubleNow = getBoolean(buffer);
+    doubleThis = getBoolean(buffer);
+    doubleLast = getBoolean(buffer);
+    lose = getBoolean(buffer);
+    newLose = getBoolean(buffer);
+    dew = getBoolean(buffer);
+  }
+  
   protected final void mix() {
     inks[2] = (inks[0] & 0x7f7f7f) + (inks[1] & 0x7f7f7f);  // This only works because they are full bright colours
   }
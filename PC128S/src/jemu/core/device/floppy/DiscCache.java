@@ -0,0 +1,126 @@
+package jemu.core.device.floppy;
+
+import java.io.*;
+import java.lang.ref.*;
+import java.nio.*;
+import java.util.*;
+import jemu.core.*;
+
+/**
+ * Process-wide cache of disc image contents, shared by all emulator instances. Images are
+ * keyed by a digest of their content, so the same disc loaded by any number of instances
+ * (or under different names) is held once. The shared buffers are read-only copies on the
+ * heap, never mappings of the files, so an instance writing its image back or a change made
+ * to the file outside does not change them under the other instances. Each DiscImage keeps
+ * its own overlay of written sectors on top of one.
+ *
+ * The most recently used MAX_RETAINED images are held strongly, others only for as long as
+ * some instance is still using them.
+ *
+ * @author
+ */
+public class DiscCache {
+
+  public static final int MAX_RETAINED = 8;
+
+  protected static Hashtable images = new Hashtable();   // Digest -> WeakReference(ByteBuffer)
+  protected static Hashtable digests = new Hashtable();  // File key -> Digest
+  protected static Vector retained = new Vector();       // Most recently used last
+
+  public interface Loader {
+    public ByteBuffer load(String name) throws Exception;
+  }
+
+  /**
+   * Returns the shared content for the named file, using the loader only if it is not
+   * already cached. Local files are identified by path, length and modification time so
+   * a changed file is loaded again. The buffer returned is the shared one, which is only
+   * weakly referenced by the cache, so callers must keep it rather than a duplicate and must
+   * duplicate it before changing its position or limit.
+   */
+  public static ByteBuffer get(String name, Loader loader) throws Exception {
+    String key = getKey(name);
+    ByteBuffer result;
+    synchronized(DiscCache.class) {
+      String digest = (String)digests.get(key);
+      result = digest == null ? null : find(digest);
+    }
+    if (result == null) {
+      ByteBuffer data = copy(loader.load(name));
+      String digest = Util.digest(data);
+      synchronized(DiscCache.class) {
+        result = find(digest);
+        if (result == null) {
+          result = data.asReadOnlyBuffer();
+          images.put(digest, new WeakReference(result));
+        }
+        digests.put(key, digest);
+        retain(result);
+      }
+    }
+    return result;
+  }
+
+  public static synchronized int size() {
+    purge();
+    return images.size();
+  }
+
+  public static synchronized void clear() {
+    images.clear();
+    digests.clear();
+    retained.removeAllElements();
+  }
+
+  // A buffer which is not already on the heap, such as a mapped file, is copied there
+  protected static ByteBuffer copy(ByteBuffer data) {
+    if (!data.isDirect())
+      return data;
+    ByteBuffer result = ByteBuffer.allocate(data.remaining());
+    result.put(data.duplicate());
+    result.flip();
+    return result;
+  }
+
+  protected static String getKey(String name) {
+    File file = new File(name);
+    return file.isFile() ? file.getAbsolutePath() + ":" + file.length() + ":" +
+      file.lastModified() : name;
+  }
+
+  protected static ByteBuffer find(String digest) {
+    Reference ref = (Reference)images.get(digest);
+    ByteBuffer result = ref == null ? null : (ByteBuffer)ref.get();
+    if (result != null)
+      retain(result);
+    else if (ref != null)
+      purge();
+    return result;
+  }
+
+  protected static void retain(ByteBuffer buffer) {
+    // Buffers compare by content, so remove by identity
+    for (int i = retained.size() - 1; i >= 0; i--)
+      if (retained.elementAt(i) == buffer)
+        retained.removeElementAt(i);
+    retained.addElement(buffer);
+    while (retained.size() > MAX_RETAINED)
+      retained.removeElementAt(0);
+  }
+
+  protected static void purge() {
+    Vector keys = Util.enumerationToVector(images.keys());
+    for (int i = 0; i < keys.size(); i++) {
+      Object digest = keys.elementAt(i);
+      if (((Reference)images.get(digest)).get() == null)
+        images.remove(digest);
+    }
+    keys = Util.enumerationToVector(digests.keys());
+    for (int i = 0; i < keys.size(); i++) {
+      Object key = keys.elementAt(i);
+      if (images.get(digests.get(key)) == null)
+        digests.remove(key);
+    }
+  }
+
+}
@@ -1,5 +1,8 @@
 package jemu.core.device.floppy;
 
+import java.io.*;
+import java.nio.*;
+
 /**
  * Provides an abstract Disc Image class. With some ability to get/set sector information for
  * each cylinder and head.
@@ -20,6 +23,40 @@ public abstract class DiscImage {
   
   public abstract byte[] readSector(int cylinder, int head, int c, int h, int r, int n);
   
+  /**
+   * Returns the sector as a buffer. Images held in a single buffer should return a view onto
+   * it rather than a copy.
+   */
+  public ByteBuffer getSectorBuffer(int cylinder, int head, int c, int h, int r, int n) {
+    byte[] result = readSector(cylinder, head, c, h, r, n);
+    return result == null ? null : ByteBuffer.wrap(result);
+  }
+  
+  /**
+   * Writes a sector, returning false if it could not be written. Images are read-only unless
+   * this is overridden.
+   */
+  public boolean writeSector(int cylinder, int head, int c, int h, int r, int n, byte[] data) {
+    return false;
+  }
+  
+  /**
+   * Formats a track with the given sector IDs (C, H, R, N) and data.
+   */
+  public boolean formatTrack(int cylinder, int head, int[][] ids, byte[][] data) {
+    boolean result = true;
+    for (int i = 0; i < ids.length; i++) {
+      int[] id = ids[i];
+      result &= writeSector(cylinder, head, id[0], id[1], id[2], id[3], data[i]);
+    }
+    return result;
+  }
+  
+  /** Ensures any written sectors have reached the underlying file */
+  public void flush() throws IOException { }
+  
+  public void close() throws IOException { }
+  
   public abstract int getSectorCount(int cylinder, int head);
   
   public abstract int[] getSectorID(int cylinder, int head, int index);
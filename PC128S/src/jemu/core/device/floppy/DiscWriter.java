@@ -0,0 +1,233 @@
+package jemu.core.device.floppy;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Writes changed sectors back to a disc image file on a background thread, so the emulation
+ * never waits for the host. Writes are gathered for FLUSH_DELAY milliseconds, then written
+ * as one batch: first to a journal file which is synced, then to the image itself, after
+ * which the journal is deleted. A journal left behind by a crash is replayed when the image
+ * is next opened, or discarded if it was not completely written.
+ *
+ * @author
+ */
+public class DiscWriter implements Runnable {
+
+  public static final int FLUSH_DELAY = 500;
+
+  protected static final int JOURNAL_MAGIC = 0x4a4e4c31;  // JNL1
+
+  protected File file;
+  protected File journal;
+  protected Hashtable pending = new Hashtable();          // Offset -> sector data
+  protected Object commitLock = new Object();
+  protected Thread thread = null;
+  protected Thread shutdownHook = null;
+  protected boolean closed = false;
+
+  /** Creates a new DiscWriter, completing any interrupted batch of writes to the file */
+  public DiscWriter(File file) throws IOException {
+    this.file = file;
+    journal = getJournal(file);
+    recover(file);
+  }
+
+  public static File getJournal(File file) {
+    return new File(file.getPath() + ".jnl");
+  }
+
+  public static void recover(File file) throws IOException {
+    File journal = getJournal(file);
+    if (journal.exists()) {
+      Hashtable sectors = readJournal(journal);
+      if (sectors != null) {
+        System.out.println("Recovering " + sectors.size() + " sectors: " + file);
+        writeSectors(file,sectors);
+      }
+      journal.delete();
+    }
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Queues a sector to be written at the given offset in the file. The data is not copied,
+   * so the caller must not change it afterwards.
+   */
+  public synchronized void write(int offset, byte[] data) {
+    if (closed)
+      return;
+    boolean first = pending.isEmpty();
+    pending.put(Integer.valueOf(offset),data);
+    if (thread == null) {
+      thread = new Thread(this,"Disc Writer: " + file.getName());
+      thread.setDaemon(true);
+      thread.start();
+      shutdownHook = new Thread() {
+        public void run() {
+          try {
+            commit();
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+        }
+      };
+      Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+    // Only the first sector of a batch starts the delay, later ones must not end it early
+    if (first)
+      notifyAll();
+  }
+
+  public void run() {
+    try {
+      while (true) {
+        synchronized(this) {
+          while (pending.isEmpty() && !closed)
+            wait();
+          if (closed)
+            return;
+          long end = System.currentTimeMillis() + FLUSH_DELAY;
+          long left;
+          while (!closed && (left = end - System.currentTimeMillis()) > 0)
+            wait(left);
+        }
+        commit();
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  /** Writes all queued sectors to the file before returning */
+  public void flush() throws IOException {
+    commit();
+  }
+
+  public void close() throws IOException {
+    synchronized(this) {
+      closed = true;
+      notifyAll();
+    }
+    commit();
+    if (shutdownHook != null) {
+      try {
+        Runtime.getRuntime().removeShutdownHook(shutdownHook);
+      } catch (IllegalStateException e) {
+        // Already shutting down
+      }
+      shutdownHook = null;
+    }
+  }
+
+  protected void commit() throws IOException {
+    // Batches are taken and written under the one lock so they reach the file in order
+    synchronized(commitLock) {
+      Hashtable batch;
+      synchronized(this) {
+        if (pending.isEmpty())
+          return;
+        batch = pending;
+        pending = new Hashtable();
+      }
+      writeJournal(journal,batch);
+      writeSectors(file,batch);
+      journal.delete();
+    }
+  }
+
+  protected static int[] getOffsets(Hashtable sectors) {
+    int[] result = new int[sectors.size()];
+    int index = 0;
+    for (Enumeration e = sectors.keys(); e.hasMoreElements(); )
+      result[index++] = ((Integer)e.nextElement()).intValue();
+    Arrays.sort(result);
+    return result;
+  }
+
+  protected static void writeJournal(File journal, Hashtable sectors) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    int[] offsets = getOffsets(sectors);
+    out.writeInt(JOURNAL_MAGIC);
+    out.writeInt(offsets.length);
+    for (int i = 0; i < offsets.length; i++) {
+      byte[] data = (byte[])sectors.get(Integer.valueOf(offsets[i]));
+      out.writeInt(offsets[i]);
+      out.writeInt(data.length);
+      out.write(data);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(bytes.toByteArray());
+    out.writeLong(crc.getValue());
+    FileOutputStream stream = new FileOutputStream(journal);
+    try {
+      bytes.writeTo(stream);
+      stream.getFD().sync();
+    } finally {
+      stream.close();
+    }
+  }
+
+  protected static Hashtable readJournal(File journal) throws IOException {
+    byte[] bytes = new byte[(int)journal.length()];
+    DataInputStream in = new DataInputStream(new FileInputStream(journal));
+    try {
+      in.readFully(bytes);
+    } finally {
+      in.close();
+    }
+    if (bytes.length < 16)
+      return null;
+    CRC32 crc = new CRC32();
+    crc.update(bytes,0,bytes.length - 8);
+    in = new DataInputStream(new ByteArrayInputStream(bytes));
+    if (in.readInt() != JOURNAL_MAGIC)
+      return null;
+    in.skip(bytes.length - 12);
+    if (in.readLong() != crc.getValue())
+      return null;    // Incomplete, the image itself was not changed
+    in = new DataInputStream(new ByteArrayInputStream(bytes,4,bytes.length - 12));
+    Hashtable result = new Hashtable();
+    for (int count = in.readInt(); count > 0; count--) {
+      int offset = in.readInt();
+      byte[] data = new byte[in.readInt()];
+      in.readFully(data);
+      result.put(Integer.valueOf(offset),data);
+    }
+    return result;
+  }
+
+  protected static void writeSectors(File file, Hashtable sectors) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file,"rw");
+    try {
+      int[] offsets = getOffsets(sectors);
+      ByteArrayOutputStream run = new ByteArrayOutputStream();
+      int start = 0;
+      for (int i = 0; i < offsets.length; i++) {
+        // Adjacent sectors are coalesced into one write
+        if (run.size() != 0 && offsets[i] != start + run.size()) {
+          raf.seek(start);
+          raf.write(run.toByteArray());
+          run.reset();
+        }
+        if (run.size() == 0)
+          start = offsets[i];
+        byte[] data = (byte[])sectors.get(Integer.valueOf(offsets[i]));
+        run.write(data,0,data.length);
+      }
+      if (run.size() != 0) {
+        raf.seek(start);
+        raf.write(run.toByteArray());
+      }
+      raf.getFD().sync();
+    } finally {
+      raf.close();
+    }
+  }
+
+}
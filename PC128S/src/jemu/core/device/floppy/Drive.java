@@ -1,5 +1,6 @@
 package jemu.core.device.floppy;
 
+import java.nio.*;
 import jemu.core.device.*;
 
 /**
@@ -50,6 +51,20 @@ public class Drive extends Device {
     return discs[head - 1];
   }
 
+  public void saveState(ByteBuffer buffer) {
+    buffer.putInt(cylinder).putInt(head).putInt(sector);
+    putBoolean(buffer, ready);
+    putBoolean(buffer, active);
+  }
+
+  public void loadState(ByteBuffer buffer) {
+    cylinder = buffer.getInt();
+    head = buffer.getInt();
+    sector = buffer.getInt();
+    ready = getBoolean(buffer);
+    setActive(getBoolean(buffer));
+  }
+
   public boolean isReady() {
     return ready;
   }
@@ -62,6 +77,10 @@ public class Drive extends Device {
     return writeProtected;
   }
 
+  public void setWriteProtected(boolean value) {
+    writeProtected = value;
+  }
+
   public void setActiveListener(DriveListener value) {
     activeListener = value;
   }
@@ -109,6 +128,18 @@ public class Drive extends Device {
     return discs[head] == null ? null : discs[head].readSector(cylinder, head, c, h, r, n);
   }
 
+  public ByteBuffer getSectorBuffer(int c, int h, int r, int n) {
+    return discs[head] == null ? null : discs[head].getSectorBuffer(cylinder, head, c, h, r, n);
+  }
+
+  public boolean writeSector(int c, int h, int r, int n, byte[] data) {
+    return discs[head] != null && discs[head].writeSector(cylinder, head, c, h, r, n, data);
+  }
+
+  public boolean formatTrack(int[][] ids, byte[][] data) {
+    return discs[head] != null && discs[head].formatTrack(cylinder, head, ids, data);
+  }
+
   public void resetSector() {
     sector = 0;
   }
@@ -1,5 +1,7 @@
 package jemu.core.device.floppy;
 
+import java.nio.*;
+import java.util.*;
 import jemu.core.Util;
 import jemu.core.cpu.MC65C12;
 import jemu.core.device.Device;
@@ -13,6 +15,9 @@ public class WD1770 extends Device {
   
   public static final int MOTOR_ON_DELAY   =  500000;
   public static final int MOTOR_OFF_DELAY  = 1500000;
+  public static final int BYTE_DELAY       =      50;
+  public static final int TURBO_DELAY      =      20;  // Long enough for the NMI handler to return
+  public static final int TRACK_SIZE       =    6250;  // Bytes in a double density track
   
   public static final int MOTOR_ON      = 0x80;
   public static final int WRITE_PROTECT = 0x40;
@@ -40,12 +45,17 @@ public class WD1770 extends Device {
   protected int side;
   protected boolean read;
   protected boolean write;
-  protected byte[] buffer;
+  protected ByteBuffer buffer;
+  protected Vector trackIDs;         // Sector IDs written by Write Track
+  protected Vector trackData;        // Sector data written by Write Track
+  protected byte[] field;            // ID or data field being written by Write Track
+  protected int fieldOffset;
   
   protected int command;             // Current command
-  protected int count;               // Current count
   protected int count2;              // Next count
-  protected int count3;              // Third count
+  protected long time;               // Controller clock
+  protected long deadline = Long.MAX_VALUE;  // Time of the next state change
+  protected boolean turbo = false;
   protected int mode = NO_COMMAND;
   protected int currentTrack = 0;
   protected int direction = -1;
@@ -72,6 +82,61 @@ public class WD1770 extends Device {
 	return this.drive;
   }
   
+  /**
+   * In turbo mode spin-up, stepping and settling take a single byte time and each data
+   * byte is delivered as soon as the previous one has been read.
+   */
+  public void setTurbo(boolean value) {
+    turbo = value;
+  }
+  
+  public boolean isTurbo() {
+    return turbo;
+  }
+  
+  public void saveState(ByteBuffer state) {
+    putInts(state,new int[] { status, track, sector, data, offset, size, side, command, count2,
+      mode, currentTrack, direction, stepRate });
+    state.putLong(time).putLong(deadline);
+    putBoolean(state,read);
+    putBoolean(state,write);
+    // A sector being written is kept, one being read is found again on the disc
+    boolean writing = write && (command & 0xf0) == 0xa0;
+    putBoolean(state,writing);
+    if (writing)
+      state.put(buffer.array(),0,size);
+  }
+  
+  public void loadState(ByteBuffer state) {
+    int[] values = new int[13];
+    getInts(state,values);
+    status = values[0];  track = values[1];   sector = values[2];   data = values[3];
+    offset = values[4];  size = values[5];    side = values[6];     command = values[7];
+    count2 = values[8];  mode = values[9];    currentTrack = values[10];
+    direction = values[11];                   stepRate = values[12];
+    time = state.getLong();
+    deadline = state.getLong();
+    read = getBoolean(state);
+    write = getBoolean(state);
+    if (getBoolean(state)) {
+      buffer = ByteBuffer.allocate(size);
+      state.get(buffer.array());
+    }
+    else if (read && offset > 0) {
+      buffer = drive.getSectorBuffer(track,side,sector,0);
+      if (buffer == null) {
+        status |= NOT_FOUND;
+        read = false;
+      }
+    }
+    if (write && (command & 0xf0) == 0xf0)
+      offset = -1;   // Write Track starts again
+  }
+  
+  protected void schedule(int delay) {
+    deadline = time + delay;
+  }
+  
   public void setInterruptDevice(Device device, int mask) {
     interruptDevice = device;
     interruptMask = mask;
@@ -103,7 +168,7 @@ public class WD1770 extends Device {
   protected void spinup(int command) {
     status &= ~SPIN_UP;
     if ((command & 0x08) == 0 && (status & MOTOR_ON) == 0) {
-      count = MOTOR_ON_DELAY;
+      schedule(turbo ? TURBO_DELAY : MOTOR_ON_DELAY);
       mode = SPIN_UP;
     }
     else
@@ -122,6 +187,8 @@ public class WD1770 extends Device {
     else currentTrack = track;
     if ((command & 0x04) != 0)
       count2 += settleTime;
+    if (turbo)
+      count2 = TURBO_DELAY;
   }
     
   public int readPort(int port) {
@@ -132,6 +199,8 @@ public class WD1770 extends Device {
       case 2: return sector;
       case 3: // Data read
     	  status&=~DATA_REQUEST; 
+    	  if (turbo && read && mode == EXECUTE && deadline > time + TURBO_DELAY)
+    	    schedule(TURBO_DELAY);
     	  return data;
     }
     return 0xfe;
@@ -146,6 +215,8 @@ public class WD1770 extends Device {
       case 3: // Data write
     	  status&=~DATA_REQUEST;
     	  data = value;
+    	  if (turbo && write && mode == EXECUTE && deadline > time + TURBO_DELAY)
+    	    schedule(TURBO_DELAY);
     	  break;
       case 4: side = (value&16)!=0?1:0;
     }
@@ -172,8 +243,12 @@ public class WD1770 extends Device {
     	  offset = 0;
     	  break; 
       case 0xA0: /*Write sector*/
-    	  status=0x83;
     	  spinup(command);
+    	  status=0x81;
+    	  write = true;
+    	  offset = -1;
+    	  size = 256;
+    	  buffer = ByteBuffer.allocate(size);
           break; 
       case 0xC0: /*Read address*/
     	  status=0x81;
@@ -185,15 +260,18 @@ public class WD1770 extends Device {
     	  spinup(command);
           break; 
       case 0xF0: /*Write track*/
-    	  status=0x81;
     	  spinup(command);
+    	  status=0x81;
+    	  write = true;
+    	  offset = -1;
+    	  size = TRACK_SIZE;
           break;       
     }
     if (mode == EXECUTE) {
-      count = count2;
+      schedule(count2);
       count2 = 0;
     }
-    //System.out.println("Command started: mode=" + mode + ", count=" + count + ", count2=" + count2 + ", status=" + Util.hex((byte)status));
+    //System.out.println("Command started: mode=" + mode + ", deadline=" + deadline + ", count2=" + count2 + ", status=" + Util.hex((byte)status));
     //((Processor)interruptDevice).stop();
   }
   
@@ -202,12 +280,97 @@ public class WD1770 extends Device {
     read = write = false;
   }
   
+  protected void requestData() {
+    status|=DATA_REQUEST|BUSY;
+    schedule(BYTE_DELAY);
+    interrupt(true);
+  }
+  
+  protected int writtenData() {
+    if ((status & DATA_REQUEST) != 0) {
+      status |= LOST_DATA;     // Not written in time, zero is written instead
+      return 0;
+    }
+    return data;
+  }
+  
+  /** Takes the next byte for Write Sector, returns true while more are required */
+  protected boolean writeSector() {
+    if (offset < 0)
+      offset = 0;
+    else
+      buffer.put(offset++,(byte)writtenData());
+    if (offset < size) {
+      requestData();
+      return true;
+    }
+    //System.out.println("1770 write sector "+Util.hex((byte)track)+" "+Util.hex((byte)sector));
+    if (!drive.writeSector(track,side,sector,0,buffer.array()))
+      status|=NOT_FOUND;
+    write = false;
+    return false;
+  }
+  
+  /**
+   * Takes the next byte for Write Track, returns true while more are required. The ID and
+   * data fields following the address marks are collected and the track formatted with them
+   * once a full track has been written.
+   */
+  protected boolean writeTrack() {
+    if (offset < 0) {
+      offset = 0;
+      trackIDs = new Vector();
+      trackData = new Vector();
+      field = null;
+    }
+    else {
+      int value = writtenData();
+      offset++;
+      if (field != null) {
+        field[fieldOffset++] = (byte)value;
+        if (fieldOffset == field.length) {
+          if (trackIDs.size() > trackData.size())
+            trackData.addElement(field);
+          else
+            trackIDs.addElement(new int[] { field[0] & 0xff, field[1] & 0xff, field[2] & 0xff,
+              field[3] & 0xff });
+          field = null;
+        }
+      }
+      else if (value == 0xfe) {                                // ID address mark
+        if (trackIDs.size() > trackData.size())
+          trackData.addElement(new byte[0]);
+        field = new byte[4];
+        fieldOffset = 0;
+      }
+      else if ((value == 0xfb || value == 0xf8) && trackIDs.size() > trackData.size()) {
+        field = new byte[128 << (((int[])trackIDs.lastElement())[3] & 0x03)];  // Data mark
+        fieldOffset = 0;
+      }
+    }
+    if (offset < size) {
+      requestData();
+      return true;
+    }
+    if (trackIDs.size() > trackData.size())
+      trackData.addElement(new byte[0]);
+    int[][] ids = new int[trackIDs.size()][];
+    byte[][] sectors = new byte[trackData.size()][];
+    trackIDs.copyInto(ids);
+    trackData.copyInto(sectors);
+    //System.out.println("1770 write track "+Util.hex((byte)track)+" "+ids.length+" sectors");
+    if (!drive.formatTrack(ids,sectors))
+      status|=NOT_FOUND;
+    write = false;
+    return false;
+  }
+  
   public void cycle() {
-    if (mode != NO_COMMAND && --count <= 0) {
+    if (++time >= deadline) {
       if (mode == SPIN_UP) {
         mode = EXECUTE;
         status |= SPIN_UP | MOTOR_ON;
-        count = count2;
+        schedule(count2);
         count2 = 0;
       }
       else if (mode == EXECUTE) {
@@ -226,16 +389,20 @@ public class WD1770 extends Device {
             } else if (read) {
             	if (offset == 0) {
         	    	//System.out.println("1770 read sector "+Util.hex((byte)track)+" "+Util.hex((byte)sector)+" inizio");
-            		buffer = drive.getSector(track,side,sector,0);
+            		buffer = drive.getSectorBuffer(track,side,sector,0);
             		size = 256;
-            	    if (buffer.length < size) {
-            	        size = buffer.length;
+            		if (buffer == null) {
+            		    status|=NOT_FOUND;
+            		    size = 0;
+            		}
+            		else if (buffer.limit() < size) {
+            	        size = buffer.limit();
             	    }
         	    }
             	if (offset<size) {        	    	
-	        	    data = buffer[offset++] & 0xff;
+	        	    data = buffer.get(offset++) & 0xff;
 	        	    status|=DATA_REQUEST|BUSY; 
-	        	    count = 50;
+	        	    schedule(BYTE_DELAY);
 	        	    interrupt(true);
 	            	return;
             	} else {
@@ -244,16 +411,26 @@ public class WD1770 extends Device {
             		offset = 0;
         	    }
             }
+        } else if (write && ((command&0xf0)==0xa0 || (command&0xf0)==0xf0)) {
+            if (drive.getDisc(1)==null) {
+                status|=NOT_FOUND;
+                write = false;
+            } else if (drive.isWriteProtected()) {
+                status|=WRITE_PROTECT;
+                write = false;
+            } else if ((command&0xf0)==0xa0 ? writeSector() : writeTrack())
+                return;
         }
         interrupt(true);
         mode = SPIN_DOWN;
-        count = MOTOR_OFF_DELAY;
+        schedule(MOTOR_OFF_DELAY);
       }
       else if (mode == SPIN_DOWN) {
         mode = NO_COMMAND;
+        deadline = Long.MAX_VALUE;
         status &= ~MOTOR_ON;
       }
-      //System.out.println("New Mode: " + mode + ", count=" + count + ", status=" + Util.hex((byte)status));
+      //System.out.println("New Mode: " + mode + ", deadline=" + deadline + ", status=" + Util.hex((byte)status));
     }
   }
   
@@ -0,0 +1,477 @@
+package jemu.core.device.hdd;
+
+import java.nio.*;
+import java.util.concurrent.*;
+import jemu.core.device.Device;
+
+/**
+ * IDE hard disc controller, presenting the ATA task file registers for an IDEFile.
+ *
+ * Ports 0 to 7 are the task file. The data register is 16 bits wide: reading port 0 returns
+ * the low byte and latches the high byte in port 8, and writing port 0 writes the low byte
+ * with the high byte previously written to port 8.
+ *
+ * This is the usual 8-bit BBC IDE interface, with the task file at &FC40-&FC47 and the high
+ * byte latch at &FC48, as driven by IDE builds of ADFS. The ADFS 2.10 in the Master Compact
+ * ROMs only knows the floppy controller, so one of those ROMs must be installed to boot from
+ * a hard disc image. The controller has so far only been exercised by driving the registers
+ * directly, not through such a ROM.
+ *
+ * Sectors are read by a separate I/O thread, which continues reading sequentially ahead of
+ * the sectors requested into a bounded queue, so the emulation never waits for the file.
+ * While the next sector is not yet in the queue the controller reports BUSY. Written sectors
+ * go to the IDEFile block cache, which is only flushed in the background.
+ *
+ * @author
+ */
+public class IDEController extends Device implements Runnable {
+
+  public static final int READ_AHEAD = 64;      // Sectors
+  public static final int HEADS      = 16;
+  public static final int SECTORS    = 63;
+  public static final int MAX_LBA    = 0x0fffffff;
+
+  // Status
+  public static final int BUSY          = 0x80;
+  public static final int READY         = 0x40;
+  public static final int SEEK_COMPLETE = 0x10;
+  public static final int DATA_REQUEST  = 0x08;
+  public static final int ERROR         = 0x01;
+
+  // Error
+  public static final int ABORTED       = 0x04;
+  public static final int NOT_FOUND     = 0x10;
+
+  // Drive/Head
+  public static final int LBA           = 0x40;
+  public static final int SLAVE         = 0x10;
+
+  // Commands
+  public static final int RECALIBRATE   = 0x10;
+  public static final int READ_SECTORS  = 0x20;
+  public static final int WRITE_SECTORS = 0x30;
+  public static final int VERIFY        = 0x40;
+  public static final int SEEK          = 0x70;
+  public static final int SET_GEOMETRY  = 0x91;
+  public static final int IDENTIFY      = 0xec;
+  public static final int SET_FEATURES  = 0xef;
+
+  protected static class Sector {
+    protected int generation;
+    protected long lba;
+    protected byte[] data = new byte[IDEFile.SECTOR_SIZE];
+  }
+
+  protected IDEFile file;
+  protected int status;
+  protected int error;
+  protected int features;
+  protected int count;
+  protected int sector;
+  protected int cylinder;
+  protected int head;
+  protected int latch;
+  protected int command;
+  protected int heads = HEADS;
+  protected int sectors = SECTORS;
+  protected long lba;                // Sector being transferred
+  protected int remaining;           // Sectors left to transfer
+  protected byte[] buffer = new byte[IDEFile.SECTOR_SIZE];
+  protected int offset;
+  protected boolean waiting = false; // Waiting for the I/O thread
+
+  // Read ahead, shared with the I/O thread
+  protected ArrayBlockingQueue queue = new ArrayBlockingQueue(READ_AHEAD);
+  protected int generation = 0;
+  protected long readLBA = -1;       // Next sector for the I/O thread to read, or -1
+  protected Thread thread = null;
+  protected boolean closed = false;
+
+  /** Creates a new instance of IDEController */
+  public IDEController() {
+    super("IDE Controller");
+    reset();
+  }
+
+  public void setFile(IDEFile value) {
+    close();
+    file = value;
+    if (file != null) {
+      closed = false;
+      thread = new Thread(this,"IDE Read Ahead");
+      thread.setDaemon(true);
+      thread.start();
+    }
+    reset();
+  }
+
+  /** Returns true while a command is in progress */
+  public boolean isBusy() {
+    return (status & (BUSY | DATA_REQUEST)) != 0;
+  }
+
+  public IDEFile getFile() {
+    return file;
+  }
+
+  /** Stops the I/O thread and closes the file */
+  public void close() {
+    if (file != null) {
+      synchronized(this) {
+        closed = true;
+        notifyAll();
+      }
+      try {
+        thread.join();
+        file.destroy();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+      file = null;
+      thread = null;
+    }
+  }
+
+  public void reset() {
+    cancelReadAhead(-1);
+    status = file == null ? 0 : READY | SEEK_COMPLETE;
+    error = 1;   // Diagnostic passed
+    count = sector = 1;
+    cylinder = head = 0;
+    remaining = 0;
+    waiting = false;
+    heads = HEADS;
+    sectors = SECTORS;
+  }
+
+  public void saveState(ByteBuffer state) {
+    putInts(state, new int[] { status, error, features, count, sector, cylinder, head, latch,
+      command, heads, sectors, remaining, offset });
+    state.putLong(lba);
+    putBoolean(state, waiting);
+    state.put(buffer);
+  }
+
+  public void loadState(ByteBuffer state) {
+    int[] values = new int[13];
+    getInts(state, values);
+    status = values[0];    error = values[1];     features = values[2];  count = values[3];
+    sector = values[4];    cylinder = values[5];  head = values[6];      latch = values[7];
+    command = values[8];   heads = values[9];     sectors = values[10];  remaining = values[11];
+    offset = values[12];
+    lba = state.getLong();
+    waiting = getBoolean(state);
+    state.get(buffer);
+    // Anything read ahead may be from a different point
+    cancelReadAhead(waiting && file != null ? lba : -1);
+  }
+
+  public int readPort(int port) {
+    if (file == null)
+      return 0xff;
+    switch(port & 0x0f) {
+      case 0: {
+        int value = readData();
+        latch = readData();
+        return value;
+      }
+      case 1: return error;
+      case 2: return count;
+      case 3: return sector;
+      case 4: return cylinder & 0xff;
+      case 5: return cylinder >> 8;
+      case 6: return head | 0xa0;
+      case 7: return status;
+      case 8: return latch;
+    }
+    return 0xff;
+  }
+
+  public void writePort(int port, int value) {
+    value &= 0xff;
+    switch(port & 0x0f) {
+      case 0:
+        writeData(value);
+        writeData(latch);
+        break;
+      case 1: features = value; break;
+      case 2: count = value; break;
+      case 3: sector = value; break;
+      case 4: cylinder = (cylinder & 0xff00) | value; break;
+      case 5: cylinder = (cylinder & 0x00ff) | (value << 8); break;
+      case 6: head = value & 0x5f; break;
+      case 7: execute(value); break;
+      case 8: latch = value; break;
+    }
+  }
+
+  public void cycle() {
+    if (waiting)
+      nextSector();
+  }
+
+  protected long getLBA() {
+    if ((head & LBA) != 0)
+      return ((head & 0x0f) << 24) | (cylinder << 8) | sector;
+    return ((long)cylinder * heads + (head & 0x0f)) * sectors + sector - 1;
+  }
+
+  protected void setLBA(long value) {
+    if ((head & LBA) != 0) {
+      head = (head & 0xf0) | (int)((value >> 24) & 0x0f);
+      cylinder = (int)(value >> 8) & 0xffff;
+      sector = (int)value & 0xff;
+    }
+    else {
+      sector = (int)(value % sectors) + 1;
+      value /= sectors;
+      head = (head & 0xf0) | (int)(value % heads);
+      cylinder = (int)(value / heads) & 0xffff;
+    }
+  }
+
+  protected long getCapacity() {
+    return Math.min(file.getSize(), MAX_LBA);
+  }
+
+  protected void execute(int value) {
+    if (file == null || (status & BUSY) != 0)
+      return;
+    command = value;
+    error = 0;
+    status = READY | SEEK_COMPLETE;
+    if ((head & SLAVE) != 0) {
+      abort();
+      return;
+    }
+    remaining = count == 0 ? 256 : count;
+    lba = getLBA();
+    switch(value & 0xf0) {
+      case RECALIBRATE:
+        cylinder = 0;
+        break;
+
+      case READ_SECTORS:
+        if (value > 0x21)
+          abort();
+        else if (checkLBA(remaining)) {
+          readAhead(lba);
+          status |= BUSY;
+          waiting = true;
+          nextSector();
+        }
+        break;
+
+      case WRITE_SECTORS:
+        if (value > 0x31)
+          abort();
+        else if (checkLBA(remaining)) {
+          // Sectors are about to change, so anything read ahead is stale
+          cancelReadAhead(-1);
+          offset = 0;
+          status |= DATA_REQUEST;
+        }
+        break;
+
+      case VERIFY:
+        if (checkLBA(remaining))
+          setLBA(lba + remaining - 1);
+        break;
+
+      case SEEK:
+        checkLBA(1);
+        break;
+
+      default:
+        switch(value) {
+          case SET_GEOMETRY:
+            heads = (head & 0x0f) + 1;
+            sectors = Math.max(1, count);
+            break;
+
+          case IDENTIFY:
+            identify();
+            offset = 0;
+            remaining = 1;
+            status |= DATA_REQUEST;
+            break;
+
+          case SET_FEATURES:
+            break;
+
+          default:
+            abort();
+        }
+    }
+  }
+
+  protected boolean checkLBA(int count) {
+    if (lba + count > getCapacity()) {
+      error = NOT_FOUND;
+      status |= ERROR;
+      return false;
+    }
+    return true;
+  }
+
+  protected void abort() {
+    error = ABORTED;
+    status = READY | SEEK_COMPLETE | ERROR;
+  }
+
+  protected void identify() {
+    long capacity = getCapacity();
+    int cylinders = (int)Math.min(capacity / (HEADS * SECTORS), 0xffff);
+    for (int i = 0; i < buffer.length; i++)
+      buffer[i] = 0;
+    putWord(0, 0x0040);               // Fixed drive
+    putWord(1, cylinders);
+    putWord(3, HEADS);
+    putWord(6, SECTORS);
+    putString(10, 20, "JEMU" + Long.toHexString(capacity));
+    putString(23, 8, "1.0");
+    putString(27, 40, "JEMU IDE Drive");
+    putWord(47, 1);                   // Sectors per interrupt for multiple commands
+    putWord(49, 0x0200);              // LBA supported
+    putWord(53, 0x0001);              // Words 54 to 58 valid
+    putWord(54, heads == 0 ? 0 : (int)Math.min(capacity / (heads * sectors), 0xffff));
+    putWord(55, heads);
+    putWord(56, sectors);
+    long chs = (long)getWord(buffer, 108) * heads * sectors;
+    putWord(57, (int)chs);
+    putWord(58, (int)(chs >> 16));
+    putWord(60, (int)capacity);
+    putWord(61, (int)(capacity >> 16));
+  }
+
+  protected void putWord(int index, int value) {
+    buffer[index * 2] = (byte)value;
+    buffer[index * 2 + 1] = (byte)(value >> 8);
+  }
+
+  protected void putString(int index, int length, String value) {
+    // ATA strings have the first character of each pair in the high byte
+    for (int i = 0; i < length; i++) {
+      byte b = (byte)(i < value.length() ? value.charAt(i) : ' ');
+      buffer[index * 2 + (i ^ 1)] = b;
+    }
+  }
+
+  protected int readData() {
+    if ((status & DATA_REQUEST) == 0)
+      return 0xff;
+    int value = buffer[offset++] & 0xff;
+    if (offset == buffer.length) {
+      status &= ~DATA_REQUEST;
+      if (--remaining > 0 && (command & 0xf0) == READ_SECTORS) {
+        lba++;
+        setLBA(lba);
+        status |= BUSY;
+        waiting = true;
+        nextSector();
+      }
+    }
+    return value;
+  }
+
+  protected void writeData(int value) {
+    if ((status & DATA_REQUEST) == 0 || (command & 0xf0) != WRITE_SECTORS)
+      return;
+    buffer[offset++] = (byte)value;
+    if (offset == buffer.length) {
+      status &= ~DATA_REQUEST;
+      try {
+        synchronized(file) {
+          file.setOffset(lba);
+          if (file.writeSector(buffer) == 0) {
+            abort();
+            return;
+          }
+        }
+      } catch (Exception e) {
+        e.printStackTrace();
+        abort();
+        return;
+      }
+      if (--remaining > 0) {
+        setLBA(++lba);
+        offset = 0;
+        status |= DATA_REQUEST;
+      }
+    }
+  }
+
+  /** Takes the next sector from the read ahead queue if it is there */
+  protected void nextSector() {
+    Sector next;
+    while ((next = (Sector)queue.peek()) != null && next.generation != generation)
+      queue.poll();
+    if (next == null)
+      return;
+    if (next.lba != lba) {
+      readAhead(lba);
+      return;
+    }
+    queue.poll();
+    System.arraycopy(next.data, 0, buffer, 0, buffer.length);
+    offset = 0;
+    waiting = false;
+    status = (status & ~BUSY) | DATA_REQUEST;
+  }
+
+  /** Starts the I/O thread reading from the given sector, unless it is already doing so */
+  protected void readAhead(long start) {
+    Sector next = (Sector)queue.peek();
+    synchronized(this) {
+      if (next != null && next.generation == generation && next.lba == start)
+        return;
+      if (next == null && readLBA == start)
+        return;
+    }
+    cancelReadAhead(start);
+  }
+
+  protected synchronized void cancelReadAhead(long start) {
+    generation++;
+    queue.clear();
+    readLBA = start;
+    notifyAll();
+  }
+
+  public void run() {
+    try {
+      while (true) {
+        int gen;
+        long next;
+        synchronized(this) {
+          while (!closed && readLBA < 0)
+            wait();
+          if (closed)
+            return;
+          gen = generation;
+          next = readLBA;
+        }
+        Sector item = new Sector();
+        item.generation = gen;
+        item.lba = next;
+        synchronized(file) {
+          file.setOffset(next);
+          file.readSector(item.data);
+        }
+        while (!queue.offer(item, 10, TimeUnit.MILLISECONDS)) {
+          synchronized(this) {
+            if (closed || gen != generation)
+              break;
+          }
+        }
+        synchronized(this) {
+          if (gen == generation)
+            readLBA = next + 1 < getCapacity() ? next + 1 : -1;
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+}
@@ -1,12 +1,19 @@
 package jemu.core.device.hdd;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.text.*;
 import java.util.*;
 
 /**
  * An IDE file is a hierarchical file containing sector information for a virtual hard disc drive.
  *
+ * Map and data blocks are held in an LRU cache of a given size in MB, and accessed using
+ * positional FileChannel I/O. Written blocks stay in the cache until flushed, evicted, or
+ * MAX_DIRTY have accumulated, then are written in block order with runs of consecutive blocks
+ * written together.
+ *
  * @author Richard Wilson
  * @version 1.0
  */
@@ -31,11 +38,16 @@ public class IDEFile {
   public static final int SECTOR_SIZE    = 512;
   public static final int MAP_SIZE       = 128;  // 512 / Size of DWORD
   public static final int MAX_DEPTH      = 4;
-  public static final int FREE_LIST_MAX  = 128;
+  public static final int FREE_LIST_MAX  = 128;  // Free blocks which start a compaction pass
+  public static final int COMPACT_BLOCKS = 64;   // Blocks moved in each pass
+  public static final int COMPACT_INTERVAL = 1000;
+  public static final int DEFAULT_CACHE  = 4;    // MB
+  public static final int MAX_DIRTY      = 256;  // Blocks
 
   public static final DateFormat CREATE_FORMAT = new SimpleDateFormat("yyyyMMdd hhmmss");
 
   protected RandomAccessFile file;
+  protected FileChannel channel;
   protected boolean readOnly;
   protected long size;
   protected long offset;
@@ -56,25 +68,55 @@ public class IDEFile {
 
   protected byte[] header = new byte[512];  // Same as SECTOR_SIZE
 
-  // Which maps are cached?
+  // Which maps are currently in use at each depth?
   protected long[] cached = new long[MAX_DEPTH];
 
-  // Cached LBA Maps
+  // LBA Maps in use at each depth
   protected byte[][] cache = new byte[MAX_DEPTH][SECTOR_SIZE];
 
-  // Free List
-  protected long[] freeList = new long[MAP_SIZE];
+  // Block cache, Long block number -> Block in least recently used order
+  protected LinkedHashMap blocks;
+  protected int maxBlocks;
+  protected int dirtyCount = 0;
+
+  protected static class Block {
+    protected long block;
+    protected byte[] data = new byte[SECTOR_SIZE];
+    protected boolean dirty = false;
+
+    protected Block(long block) {
+      this.block = block;
+    }
+  }
+
+  // Free blocks below nextFree
+  protected BitSet free = new BitSet();
   protected long nextFree;
   protected int freeSize;
 
+  // Owner of each block in use: (parent block << 9) | ((depth - 1) << 7) | index in parent.
+  // Depths 1 to 3 are maps, depth 4 is data. Built by the compactor before it moves blocks.
+  protected long[] owners = new long[0];
+  protected boolean indexed = false;
+
+  // Background compaction
+  protected Thread compactor = null;
+  protected boolean closing = false;
+
   // Each sector is 512 Bytes
   // A Map sector is 128 DWORD values (512 bytes)
 
   public IDEFile(File source, boolean readOnly) throws Exception {
+    this(source, readOnly, DEFAULT_CACHE);
+  }
+
+  public IDEFile(File source, boolean readOnly, int cacheSize) throws Exception {
     this.readOnly = readOnly;
-    file = new RandomAccessFile(source, readOnly ? "r" : "rws");
+    setCacheSize(cacheSize);
+    file = new RandomAccessFile(source, readOnly ? "r" : "rw");
+    channel = file.getChannel();
     try {
-      int count = file.read(header);
+      int count = Math.max(0, channel.read(ByteBuffer.wrap(header), 0));
       if (count == 0 && !readOnly) {
         for (int i = 0; i < header.length; i++)
           header[i] = 0;
@@ -88,30 +130,75 @@ public class IDEFile {
         writeString(header, 0x40, 0x40, CREATOR);
         writeString(header, 0x80, 0x40, System.getProperty("user"));
         writeString(header, 0xc0, 0x40, DESCRIPTION);
-        file.write(header);
-        file.write(cache[0]);
+        channel.write(ByteBuffer.wrap(header), 0);
+        channel.write(ByteBuffer.wrap(cache[0]), SECTOR_SIZE);
       }
       else {
-        if (count != SECTOR_SIZE || file.read(cache[0]) != SECTOR_SIZE)
+        if (count != SECTOR_SIZE || channel.read(ByteBuffer.wrap(cache[0]), SECTOR_SIZE) != SECTOR_SIZE)
           throw new Exception("Invalid IDE File");
         int verMajor = getInt(header, 0x18);
         if (verMajor < 1 || verMajor > VER_MAJOR)
           throw new Exception("Invalid IDE File Version");
       }
       size = getInt(header, 0x24) & 0xffffffffL;  // MAX_SIZE
-      nextFree = file.length() / SECTOR_SIZE;
+      nextFree = channel.size() / SECTOR_SIZE;
       freeSize = 0;
       cached[0] = 1;  // Index of first LBAMap after header
     } catch(Exception e) {
       file.close();
       throw e;
     }
+    if (!readOnly) {
+      compactor = new Thread("IDE Compactor: " + source.getName()) {
+        public void run() {
+          compact();
+        }
+      };
+      compactor.setDaemon(true);
+      compactor.start();
+    }
+  }
+
+  /**
+   * Sets the size of the block cache in MB, at least one block per map depth is kept.
+   */
+  public void setCacheSize(int cacheSize) throws IOException {
+    maxBlocks = Math.max(MAX_DEPTH * 2, (int)((long)cacheSize * 1024 * 1024 / SECTOR_SIZE));
+    LinkedHashMap old = blocks;
+    blocks = new LinkedHashMap(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry eldest) {
+        if (size() <= maxBlocks)
+          return false;
+        if (((Block)eldest.getValue()).dirty) {
+          try {
+            flushBlocks();
+          } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+          }
+        }
+        return true;
+      }
+    };
+    if (old != null) {
+      flushBlocks(old);
+      dirtyCount = 0;
+    }
   }
 
   public void destroy() throws IOException {
     try {
-      if (!readOnly)
-        compress();
+      if (!readOnly) {
+        synchronized(this) {
+          closing = true;
+          notifyAll();
+        }
+        // Compaction is incremental, so only free blocks at the end of the file are removed
+        compactor.join();
+        synchronized(this) {
+          truncate();
+          flush();
+        }
+      }
     } catch(Exception e) {
       e.printStackTrace();
     } finally {
@@ -119,68 +206,207 @@ public class IDEFile {
     }
   }
 
-  protected void compress() throws Exception {
-    if (freeSize > 0) {
-      nextFree -= freeSize;
-      int sz = 0;
-      for (int i = 0; i < freeSize; i++)
-        if (freeList[i] < nextFree)
-          freeList[sz++] = freeList[i];
-      freeSize = sz;
-      if (sz > 0)
-        compressBlock(1, cache[0], 1);
-      file.setLength((long)nextFree * SECTOR_SIZE);
-      if (freeSize != 0)
-        throw new Exception("FreeList not fully cleared");
+  /** Writes all modified blocks to the file */
+  public synchronized void flush() throws IOException {
+    flushBlocks();
+    if (!readOnly)
+      channel.force(false);
+  }
+
+  protected void flushBlocks() throws IOException {
+    flushBlocks(blocks);
+    dirtyCount = 0;
+  }
+
+  protected void flushBlocks(LinkedHashMap blocks) throws IOException {
+    // Iterate over the values rather than get() which would reorder the map
+    Vector dirty = new Vector();
+    for (Iterator i = blocks.values().iterator(); i.hasNext(); ) {
+      Block b = (Block)i.next();
+      if (b.dirty)
+        dirty.addElement(b);
+    }
+    if (dirty.size() == 0)
+      return;
+    Block[] sorted = new Block[dirty.size()];
+    dirty.copyInto(sorted);
+    Arrays.sort(sorted, new Comparator() {
+      public int compare(Object o1, Object o2) {
+        long b1 = ((Block)o1).block, b2 = ((Block)o2).block;
+        return b1 < b2 ? -1 : b1 == b2 ? 0 : 1;
+      }
+    });
+    int start = 0;
+    for (int i = 1; i <= sorted.length; i++) {
+      if (i == sorted.length || sorted[i].block != sorted[i - 1].block + 1) {
+        // One write for each run of consecutive blocks
+        ByteBuffer run = ByteBuffer.allocate((i - start) * SECTOR_SIZE);
+        for (int j = start; j < i; j++) {
+          run.put(sorted[j].data);
+          sorted[j].dirty = false;
+        }
+        run.flip();
+        long position = sorted[start].block * SECTOR_SIZE;
+        while (run.hasRemaining())
+          channel.write(run, position + run.position());
+        start = i;
+      }
     }
   }
 
-  protected void compressBlock(long block, byte[] map, int depth) throws IOException {
-    boolean modified = false;
-    byte[] sec = new byte[MAP_SIZE];
-    for (int i = MAP_SIZE - 1; i >= 0; i--) {
-      long current = getMap(map, i);
-      if (current != 0 && current < MAX_MAP_VALUE) {
-        byte[] p = sec;
-        if (current >= nextFree) {
-          long newBlk = freeList[--freeSize];
-          if (depth < MAX_DEPTH && current == cached[depth]) {
-            cached[depth] = newBlk;
-            p = cache[depth];
-          }
-          else
-            readBlock(current, p);
-          current = newBlk & 0xffffffffL;
-          writeBlock(current, p);
-          writeMap(map, i, current);
-          modified = true;
-          if (freeSize == 0)
-            break;
+  protected Block getBlock(long block, boolean read) throws IOException {
+    Long key = Long.valueOf(block);
+    Block result = (Block)blocks.get(key);
+    if (result == null) {
+      result = new Block(block);
+      if (read) {
+        ByteBuffer buffer = ByteBuffer.wrap(result.data);
+        long position = block * SECTOR_SIZE;
+        while (buffer.hasRemaining()) {
+          if (channel.read(buffer, position + buffer.position()) < 0)
+            break;   // Beyond the end of the file, the remainder is zero
         }
-        else if (depth < MAX_DEPTH) {
-          if (current == cached[depth])
-            p = cache[depth];
-          readBlock(current, p);
+      }
+      blocks.put(key, result);
+    }
+    return result;
+  }
+
+  /**
+   * Body of the compactor thread. The block owners are indexed (finding any blocks left free
+   * by an earlier session) then, whenever FREE_LIST_MAX blocks are free or COMPACT_INTERVAL
+   * has passed, up to COMPACT_BLOCKS blocks are moved from the end of the file into free
+   * blocks and the file truncated. The lock is only held for one pass at a time.
+   */
+  protected void compact() {
+    try {
+      synchronized(this) {
+        if (!closing)
+          buildIndex();
+      }
+      while (true) {
+        synchronized(this) {
+          if (freeSize < FREE_LIST_MAX && !closing)
+            wait(COMPACT_INTERVAL);
+          if (closing)
+            return;
+          if (freeSize > 0)
+            compactPass();
         }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  protected void buildIndex() throws IOException {
+    BitSet used = new BitSet();
+    used.set(0, 2);  // Header and root map
+    indexMap(1, cache[0], 1, used);
+    free = new BitSet();
+    for (int i = used.nextClearBit(0); i < nextFree; i = used.nextClearBit(i + 1))
+      free.set(i);
+    freeSize = free.cardinality();
+    indexed = true;
+  }
+
+  protected void indexMap(long block, byte[] map, int depth, BitSet used) throws IOException {
+    byte[] child = new byte[SECTOR_SIZE];
+    for (int i = 0; i < MAP_SIZE; i++) {
+      long current = getMap(map, i);
+      if (current != 0 && current < MAX_MAP_VALUE) {
+        used.set((int)current);
+        setOwner(current, block, depth, i);
         if (depth < MAX_DEPTH) {
-          compressBlock(current, p, depth + 1);
-          if (freeSize == 0)
-            break;
+          readBlock(current, child);
+          indexMap(current, child, depth + 1, used);
         }
       }
     }
-    if (modified)
-      writeBlock(block, map);
+  }
+
+  protected void setOwner(long block, long parent, int depth, int index) {
+    if (block >= owners.length) {
+      long[] grown = new long[(int)Math.max(block + 1, owners.length * 2L)];
+      System.arraycopy(owners, 0, grown, 0, owners.length);
+      owners = grown;
+    }
+    owners[(int)block] = (parent << 9) | ((depth - 1) << 7) | index;
+  }
+
+  protected void compactPass() throws IOException {
+    truncate();
+    for (int count = 0; indexed && count < COMPACT_BLOCKS && freeSize > 0; count++) {
+      int to = free.nextSetBit(0);
+      if (to < 0 || to >= nextFree - 1)
+        break;
+      moveBlock(nextFree - 1, to);
+      truncate();
+    }
+  }
+
+  /** Moves a block in use to a free one, updating its parent map */
+  protected void moveBlock(long from, long to) throws IOException {
+    long owner = owners[(int)from];
+    long parent = owner >>> 9;
+    int depth = (int)(owner >> 7 & 0x03) + 1;
+    int index = (int)owner & 0x7f;
+    free.clear((int)to);
+    freeSize--;
+    byte[] data = new byte[SECTOR_SIZE];
+    readBlock(from, data);
+    writeBlock(to, data);
+    byte[] map = new byte[SECTOR_SIZE];
+    readBlock(parent, map);
+    writeMap(map, index, to);
+    writeBlock(parent, map);
+    if (cached[depth - 1] == parent)
+      writeMap(cache[depth - 1], index, to);
+    if (depth < MAX_DEPTH) {
+      if (cached[depth] == from)
+        cached[depth] = to;
+      for (int i = 0; i < MAP_SIZE; i++) {
+        long child = getMap(data, i);
+        if (child != 0 && child < MAX_MAP_VALUE)
+          setOwner(child, to, depth + 1, i);
+      }
+    }
+    owners[(int)to] = owner;
+    owners[(int)from] = 0;
+    free.set((int)from);
+    freeSize++;
+  }
+
+  /** Removes free blocks from the end of the file */
+  protected void truncate() throws IOException {
+    long size = nextFree;
+    while (nextFree > 2 && free.get((int)nextFree - 1)) {
+      free.clear((int)--nextFree);
+      freeSize--;
+    }
+    if (nextFree < size) {
+      for (Iterator i = blocks.values().iterator(); i.hasNext(); )
+        if (((Block)i.next()).block >= nextFree)
+          i.remove();
+      flushBlocks();
+      channel.truncate(nextFree * SECTOR_SIZE);
+    }
   }
 
   protected int readBlock(long block, byte[] data) throws IOException {
-    file.seek(block * SECTOR_SIZE);
-    return file.read(data, 0, SECTOR_SIZE);
+    System.arraycopy(getBlock(block, true).data, 0, data, 0, SECTOR_SIZE);
+    return SECTOR_SIZE;
   }
 
   protected void writeBlock(long block, byte[] data) throws IOException {
-    file.seek(block * SECTOR_SIZE);
-    file.write(data, 0, SECTOR_SIZE);
+    Block b = getBlock(block, false);
+    if (b.data != data)
+      System.arraycopy(data, 0, b.data, 0, SECTOR_SIZE);
+    if (!b.dirty) {
+      b.dirty = true;
+      if (++dirtyCount >= MAX_DIRTY)
+        flushBlocks();
+    }
   }
 
   protected void checkCached(long block, int depth) throws IOException {
@@ -197,7 +423,20 @@ public class IDEFile {
     }
   }
 
-  public int readSector(byte[] buffer) throws IOException {
+  public long getSize() {
+    return size;
+  }
+
+  public long getOffset() {
+    return offset;
+  }
+
+  /** Sets the sector for the next read or write */
+  public void setOffset(long value) {
+    offset = value;
+  }
+
+  public synchronized int readSector(byte[] buffer) throws IOException {
     if (offset >= size)
       return 0;
     int fill = getInt(header, 0x28);
@@ -245,10 +484,13 @@ public class IDEFile {
   }
 
   protected long getFree() {
-    if (freeSize == 0)
+    // The lowest free block is used so the end of the file can be compacted
+    int block = freeSize == 0 ? -1 : free.nextSetBit(0);
+    if (block < 0)
       return nextFree++;
-    else
-      return freeList[--freeSize];
+    free.clear(block);
+    freeSize--;
+    return block;
   }
 
   protected long zeroFree(byte[] buffer) throws IOException {
@@ -260,9 +502,11 @@ public class IDEFile {
   }
 
   protected void freeBlock(long block) throws Exception {
-    freeList[freeSize++] = block;
-    if (freeSize == FREE_LIST_MAX)
-      compress();
+    free.set((int)block);
+    if (block < owners.length)
+      owners[(int)block] = 0;
+    if (++freeSize >= FREE_LIST_MAX)
+      notifyAll();
   }
 
   protected boolean updateCache(int depth, int index, long value) throws Exception {
@@ -271,9 +515,11 @@ public class IDEFile {
     if (prev != value) {
       writeMap(map, index, value);
       writeBlock(cached[depth], map);
+      if (value != 0 && value < MAX_MAP_VALUE)
+        setOwner(value, cached[depth], depth + 1, index);
       if (value == 0 || value >= 0xffff0000L) {
         if (prev != 0 && prev < 0xffff0000L) {
-          if (depth < 4 && cached[depth + 1] == prev)
+          if (depth < MAX_DEPTH - 1 && cached[depth + 1] == prev)
             cached[depth + 1] = 0;
           freeBlock(prev);
         }
@@ -289,7 +535,7 @@ public class IDEFile {
     updateCache(depth - 1, index, block);
   }
 
-  public int writeSector(byte[] buffer) throws Exception {
+  public synchronized int writeSector(byte[] buffer) throws Exception {
     if (readOnly || offset >= size)
       return 0;
     long value = checkSector(buffer);
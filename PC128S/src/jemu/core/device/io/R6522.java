@@ -1,5 +1,6 @@
 package jemu.core.device.io;
 
+import java.nio.ByteBuffer;
 import jemu.core.Util;
 import jemu.core.device.Device;
 import jemu.core.device.IOPort;
@@ -73,6 +74,41 @@ public class R6522 extends Device {
     ier = INT_SET;
   }
   
+  public void saveState(ByteBuffer buffer) {
+    ports[PORT_A].saveState(buffer);
+    ports[PORT_B].saveState(buffer);
+    buffer.putInt(t1c).putInt(t1l).putInt(t2c).putInt(t2l);
+    buffer.put((byte)sr).put((byte)acr).put((byte)pcr).put((byte)ifr).put((byte)ier);
+    putBoolean(buffer,ca1);
+    putBoolean(buffer,ca2);
+    putBoolean(buffer,cb1);
+    putBoolean(buffer,cb2);
+    putBoolean(buffer,nint);
+    putBoolean(buffer,t1int);
+    putBoolean(buffer,t2int);
+  }
+  
+  public void loadState(ByteBuffer buffer) {
+    ports[PORT_A].loadState(buffer);
+    ports[PORT_B].loadState(buffer);
+    t1c = buffer.getInt();
+    t1l = buffer.getInt();
+    t2c = buffer.getInt();
+    t2l = buffer.getInt();
+    sr = buffer.get() & 0xff;
+    acr = buffer.get() & 0xff;
+    pcr = buffer.get() & 0xff;
+    ifr = buffer.get() & 0xff;
+    ier = buffer.get() & 0xff;
+    ca1 = getBoolean(buffer);
+    ca2 = getBoolean(buffer);
+    cb1 = getBoolean(buffer);
+    cb2 = getBoolean(buffer);
+    nint = getBoolean(buffer);
+    t1int = getBoolean(buffer);
+    t2int = getBoolean(buffer);
+  }
+  
   public void setInterruptDevice(Device device, int mask) {
     interruptDevice = device;
     interruptMask = mask;
@@ -0,0 +1,448 @@
+package jemu.core.device.io;
+
+import jemu.core.cpu.Processor;
+import jemu.core.device.Device;
+
+/**
+ * Tube ULA, the link between a host computer and a second processor. Each of its four
+ * registers has a FIFO in each direction: R1 from the parasite holds 24 bytes, R3 holds two
+ * bytes either way while V is set, and the others hold one. The host sees the registers at
+ * ports 0..7 through readPort and writePort, with a status byte at each even port (bit 7
+ * data available, bit 6 not full) and the data at the odd port above it. The parasite sees
+ * the same layout through readParasite and writeParasite. Port 0 also holds the control
+ * flags, which the host sets by writing them with bit 7 set and clears with bit 7 clear.
+ *
+ * The two processors run on their own threads and meet only here. Each side publishes its
+ * time, in host cycles, when it syncs and at each register access. The parasite is kept
+ * behind the host and the host no more than WINDOW cycles ahead of it. Each byte is stamped
+ * with the time it was written and is not seen before then, so what the host writes reaches
+ * the parasite, and its NMI, at the cycle it was written, and what the parasite writes
+ * reaches the host within WINDOW cycles. Status reads never wait. Reading an empty FIFO or
+ * writing a full one waits for the other side to write or read it, while that side runs on
+ * up to twice WINDOW cycles ahead, so transfers timed by cycle counts rather than status are
+ * not lost to a thread which is behind in real time. Neither side waits for the other while
+ * it is waiting on a FIFO, so they never wait for each other. Interrupts are applied to each
+ * processor on its own thread, at its next sync or register access.
+ *
+ * @author
+ */
+public class Tube extends Device {
+
+  public static final int FLAG_Q = 0x01;  // Host IRQ while R4 has data for the host
+  public static final int FLAG_I = 0x02;  // Parasite IRQ while R1 has data for the parasite
+  public static final int FLAG_J = 0x04;  // Parasite IRQ while R4 has data for the parasite
+  public static final int FLAG_M = 0x08;  // Parasite NMI from R3
+  public static final int FLAG_V = 0x10;  // Two byte R3
+  public static final int FLAG_P = 0x20;  // Parasite held in reset
+  public static final int FLAG_T = 0x40;  // Clears the FIFOs when set
+  public static final int FLAG_S = 0x80;  // Sets the flags written, or clears them
+
+  public static final int SYNC   = 8;      // Host cycles between publishing the host time
+  public static final int WINDOW = 2000;   // Host cycles the host may run ahead
+
+  protected static final int DATA     = 0x80;   // Status: data available
+  protected static final int NOT_FULL = 0x40;   // Status: room for data
+  protected static final int FLAGS    = 0x3f;
+
+  protected static final int SPINS = 100;       // Yields before sleeping while waiting
+
+  protected static final int[] HOST_SIZES     = { 24, 1, 2, 1 };   // Parasite to host
+  protected static final int[] PARASITE_SIZES = { 1, 1, 2, 1 };    // Host to parasite
+
+  /**
+   * A FIFO of bytes, each stamped with the time it was written, which repeats the last byte
+   * read when it has none to give.
+   */
+  protected static class Fifo {
+
+    protected int[] data;
+    protected long[] times;
+    protected int count = 0;
+    protected int last = 0;
+    protected long emptied = Long.MIN_VALUE;    // When the last byte was read
+
+    public Fifo(int size) {
+      data = new int[size];
+      times = new long[size];
+    }
+
+    // R3 takes one byte unless V is set
+    public int getSize(int flags, int reg) {
+      return reg == 2 && (flags & FLAG_V) == 0 ? 1 : data.length;
+    }
+
+    public void clear() {
+      count = 0;
+      emptied = Long.MIN_VALUE;
+    }
+
+    // A full FIFO has its newest byte replaced
+    public void put(int value, int size, long time) {
+      if (count >= size)
+        count = size - 1;
+      data[count] = value & 0xff;
+      times[count++] = time;
+    }
+
+    // The bytes written by time
+    public int getCount(long time) {
+      int result = 0;
+      while (result < count && times[result] <= time)
+        result++;
+      return result;
+    }
+
+    public boolean isEmpty(long time) {
+      return count == 0 && emptied <= time;
+    }
+
+    public int get(long time) {
+      if (count > 0 && times[0] <= time) {
+        last = data[0];
+        count--;
+        System.arraycopy(data,1,data,0,count);
+        System.arraycopy(times,1,times,0,count);
+        if (count == 0)
+          emptied = time;
+      }
+      return last;
+    }
+
+  }
+
+  protected Fifo[] toHost = new Fifo[4];
+  protected Fifo[] toParasite = new Fifo[4];
+  protected int flags = 0;
+
+  protected Processor host;
+  protected int hostMask;
+  protected int hostCount = SYNC;
+  protected boolean hostApplied = false;
+  protected Processor parasite;
+  protected int parasiteIRQMask;
+  protected int parasiteNMIMask;
+  protected int parasiteApplied = 0;
+  protected long parasiteBase;   // Parasite cycles when its clock was started
+  protected long parasiteStart;  // Host time when its clock was started
+
+  protected volatile boolean parasiteReset = false; // P, set with the flags
+  protected volatile boolean resetRequest = false;  // Host reset, seen at the parasite's sync
+  protected volatile boolean hostWaiting = false;   // On a FIFO, so only waited for up to its time
+  protected volatile boolean parasiteWaiting = false;
+
+  // Published times in host cycles. A parasite which is held or absent never holds the host.
+  protected volatile long hostTime = 0;
+  protected volatile long parasiteTime = Long.MAX_VALUE;
+  protected volatile boolean open = true;
+
+  public Tube() {
+    super("Tube ULA");
+    for (int i = 0; i < 4; i++) {
+      toHost[i] = new Fifo(HOST_SIZES[i]);
+      toParasite[i] = new Fifo(PARASITE_SIZES[i]);
+    }
+    clear();
+  }
+
+  /** Sets the host processor, whose cycles are the time and which is given the IRQ */
+  public void setHost(Processor cpu, int mask) {
+    host = cpu;
+    hostMask = mask;
+    hostTime = cpu.getCycles();
+  }
+
+  /**
+   * Sets the second processor, which must call syncParasite often as it runs and
+   * holdParasite while syncParasite returns false.
+   */
+  public void setParasite(Processor cpu, int irqMask, int nmiMask) {
+    parasite = cpu;
+    parasiteIRQMask = irqMask;
+    parasiteNMIMask = nmiMask;
+  }
+
+  /** Clears the flags and the FIFOs and resets the parasite, on the host thread */
+  public void reset() {
+    synchronized(this) {
+      flags = 0;
+      parasiteReset = false;
+      clear();
+    }
+    resetRequest = true;
+    hostTime = host.getCycles();
+    hostApplied = false;
+    host.clearInterrupt(hostMask);
+  }
+
+  /** Releases both sides from any wait, for good */
+  public void close() {
+    open = false;
+  }
+
+  public boolean isOpen() {
+    return open;
+  }
+
+  // Called with the lock held. R3 to the host is left holding a byte, as on the real ULA, so
+  // that M alone does not give an NMI.
+  protected void clear() {
+    for (int i = 0; i < 4; i++) {
+      toHost[i].clear();
+      toParasite[i].clear();
+    }
+    toHost[2].put(0,1,Long.MIN_VALUE);
+  }
+
+  // The host IRQ at time, with the lock held
+  protected boolean getHostIRQ(long time) {
+    return (flags & FLAG_Q) != 0 && toHost[3].getCount(time) > 0;
+  }
+
+  // The parasite interrupts at time, with the lock held
+  protected int getParasiteLines(long time) {
+    int result = 0;
+    if ((flags & FLAG_I) != 0 && toParasite[0].getCount(time) > 0 ||
+      (flags & FLAG_J) != 0 && toParasite[3].getCount(time) > 0)
+      result |= parasiteIRQMask;
+    if ((flags & FLAG_M) != 0 && (toHost[2].isEmpty(time) ||
+      toParasite[2].getCount(time) >= toParasite[2].getSize(flags,2)))
+      result |= parasiteNMIMask;
+    return result;
+  }
+
+  // R3 only has data once it has as many bytes as it takes
+  protected int getStatus(Fifo[] in, Fifo[] out, int reg, long time) {
+    int need = reg == 2 ? in[reg].getSize(flags,reg) : 1;
+    int result = in[reg].getCount(time) >= need ? DATA : 0;
+    if (out[reg].count < out[reg].getSize(flags,reg))
+      result |= NOT_FULL;
+    return reg == 0 ? result | flags & FLAGS : result;
+  }
+
+  // True for a read of an empty FIFO or a write to a full one
+  protected synchronized boolean isBlocked(Fifo[] in, Fifo[] out, int port, boolean write) {
+    int reg = port >> 1;
+    if ((port & 0x01) == 0)
+      return false;
+    else if (write)
+      return out[reg].count >= out[reg].getSize(flags,reg);
+    else
+      return in[reg].count == 0;
+  }
+
+  // True if the other side, at its time, may yet unblock a FIFO access made at time
+  protected static boolean canUnblock(long other, boolean waiting, long time) {
+    return other - time < 2 * WINDOW && !waiting;
+  }
+
+  // Called with the lock held
+  protected int read(Fifo[] in, Fifo[] out, int port, long time) {
+    int reg = port >> 1;
+    return (port & 0x01) == 0 ? getStatus(in,out,reg,time) : in[reg].get(time);
+  }
+
+  // Called with the lock held
+  protected void write(Fifo[] out, int port, int value, long time) {
+    int reg = port >> 1;
+    if ((port & 0x01) != 0)
+      out[reg].put(value,out[reg].getSize(flags,reg),time);
+    else if (out == toParasite && reg == 0) {
+      if ((value & FLAG_S) != 0) {
+        flags |= value & FLAGS;
+        if ((value & FLAG_T) != 0)
+          clear();
+      }
+      else
+        flags &= ~value & FLAGS;
+      parasiteReset = (flags & FLAG_P) != 0;
+    }
+  }
+
+  // ---------------------------------------------------------------------------------------
+  // Host side
+  // ---------------------------------------------------------------------------------------
+
+  /** Called for each cycle of the host */
+  public void cycle() {
+    if (--hostCount <= 0) {
+      hostCount = SYNC;
+      long time = hostTime = host.getCycles();
+      boolean irq;
+      synchronized(this) {
+        irq = getHostIRQ(time);
+      }
+      applyHost(irq);
+      if (time - parasiteTime > WINDOW)
+        waitForParasiteTime(time);
+    }
+  }
+
+  public int readPort(int port) {
+    port &= 0x07;
+    long time = waitForParasite(port,false);
+    int result;
+    boolean irq;
+    synchronized(this) {
+      result = read(toHost,toParasite,port,time);
+      irq = getHostIRQ(time);
+    }
+    applyHost(irq);
+    return result;
+  }
+
+  public void writePort(int port, int value) {
+    port &= 0x07;
+    long time = waitForParasite(port,true);
+    boolean irq;
+    synchronized(this) {
+      write(toParasite,port,value,time);
+      irq = getHostIRQ(time);
+    }
+    applyHost(irq);
+  }
+
+  // Waits while a FIFO access by the host is blocked and the parasite could unblock it
+  protected long waitForParasite(int port, boolean write) {
+    long time = hostTime = host.getCycles();
+    if (isBlocked(toHost,toParasite,port,write)) {
+      hostWaiting = true;
+      for (int spins = 0; open && canUnblock(parasiteTime,parasiteWaiting,time) &&
+        isBlocked(toHost,toParasite,port,write); spins++)
+        pause(spins);
+      hostWaiting = false;
+    }
+    return time;
+  }
+
+  protected void applyHost(boolean irq) {
+    if (irq != hostApplied) {
+      hostApplied = irq;
+      if (irq)
+        host.setInterrupt(hostMask);
+      else
+        host.clearInterrupt(hostMask);
+    }
+  }
+
+  // Waits while the host, at time, is too far ahead of the parasite
+  protected void waitForParasiteTime(long time) {
+    for (int spins = 0; open && time - parasiteTime > (parasiteWaiting ? 2 * WINDOW : WINDOW);
+      spins++)
+      pause(spins);
+  }
+
+  // ---------------------------------------------------------------------------------------
+  // Parasite side
+  // ---------------------------------------------------------------------------------------
+
+  protected long getParasiteTime() {
+    return parasiteStart + (parasite.getCycles() - parasiteBase) * host.getCyclesPerSecond() /
+      parasite.getCyclesPerSecond();
+  }
+
+  /**
+   * Publishes the time of the parasite and applies its interrupts, waiting while it is ahead
+   * of the host. Returns false when the parasite is to be reset, which the processor should
+   * stop for and then call holdParasite.
+   */
+  public boolean syncParasite() {
+    long time = parasiteTime = getParasiteTime();
+    if (resetRequest || parasiteReset)
+      return false;
+    int lines;
+    synchronized(this) {
+      lines = getParasiteLines(time);
+    }
+    applyParasite(lines);
+    if (time > hostTime)
+      waitForHostTime(time);
+    return open;
+  }
+
+  /**
+   * Holds the parasite in reset while P is set, then starts its clock at the time of the
+   * host. Returns false if the tube has been closed.
+   */
+  public boolean holdParasite() {
+    parasiteTime = Long.MAX_VALUE;
+    resetRequest = false;
+    parasiteApplied = 0;
+    parasite.clearInterrupt(parasiteIRQMask | parasiteNMIMask);
+    for (int spins = 0; open && parasiteReset && !resetRequest; spins++)
+      pause(spins);
+    parasiteBase = parasite.getCycles();
+    parasiteStart = hostTime;
+    parasiteTime = parasiteStart;
+    return open;
+  }
+
+  // The lines are taken with the access, so an NMI which falls with a read of R3 is seen to
+  // fall before a write by the host raises it again
+  public int readParasite(int port) {
+    port &= 0x07;
+    long time = waitForHost(port,false);
+    int result, lines;
+    synchronized(this) {
+      result = read(toParasite,toHost,port,time);
+      lines = getParasiteLines(time);
+    }
+    applyParasite(lines);
+    return result;
+  }
+
+  public void writeParasite(int port, int value) {
+    port &= 0x07;
+    long time = waitForHost(port,true);
+    int lines;
+    synchronized(this) {
+      write(toHost,port,value,time);
+      lines = getParasiteLines(time);
+    }
+    applyParasite(lines);
+  }
+
+  // Waits while a FIFO access by the parasite is blocked and the host could unblock it
+  protected long waitForHost(int port, boolean write) {
+    long time = parasiteTime = getParasiteTime();
+    if (isBlocked(toParasite,toHost,port,write)) {
+      parasiteWaiting = true;
+      for (int spins = 0; open && !resetRequest && canUnblock(hostTime,hostWaiting,time) &&
+        isBlocked(toParasite,toHost,port,write); spins++)
+        pause(spins);
+      parasiteWaiting = false;
+    }
+    return time;
+  }
+
+  protected void applyParasite(int lines) {
+    int changed = lines ^ parasiteApplied;
+    if (changed != 0) {
+      parasiteApplied = lines;
+      if ((changed & lines) != 0)
+        parasite.setInterrupt(changed & lines);
+      if ((changed & ~lines) != 0)
+        parasite.clearInterrupt(changed & ~lines);
+    }
+  }
+
+  // Waits while the parasite, at time, is ahead of the host, or more than twice WINDOW ahead
+  // of it while the host waits on a FIFO
+  protected void waitForHostTime(long time) {
+    for (int spins = 0; open && !resetRequest &&
+      time - hostTime > (hostWaiting ? 2 * WINDOW : 0); spins++)
+      pause(spins);
+  }
+
+  protected static void pause(int spins) {
+    if (spins < SPINS)
+      Thread.yield();
+    else {
+      try {
+        Thread.sleep(1);
+      } catch (InterruptedException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,52 @@
+package jemu.core.device.keyboard;
+
+/**
+ * A fixed size queue of key events passed from one thread, such as the AWT event thread, to
+ * the emulation thread without locking or allocating. Only one thread may put events and only
+ * one may take them. The producer publishes each event with the volatile write of tail and the
+ * consumer frees its slot with the volatile write of head.
+ *
+ * @author
+ */
+public class KeyQueue {
+
+  public static final int CAPACITY = 256;
+
+  protected int[] events;
+  protected int mask;
+  protected volatile int head = 0;   // Next event to take, only written by the consumer
+  protected volatile int tail = 0;   // Next event to put, only written by the producer
+
+  public KeyQueue() {
+    this(CAPACITY);
+  }
+
+  /** Creates a queue holding the given number of events, which must be a power of two */
+  public KeyQueue(int capacity) {
+    events = new int[capacity];
+    mask = capacity - 1;
+  }
+
+  /** Puts an event, returning false if the queue is full */
+  public boolean offer(int event) {
+    int index = tail;
+    if (index - head == events.length)
+      return false;
+    events[index & mask] = event;
+    tail = index + 1;
+    return true;
+  }
+
+  public boolean isEmpty() {
+    return head == tail;
+  }
+
+  /** Takes the oldest event. The queue must not be empty. */
+  public int take() {
+    int index = head;
+    int result = events[index & mask];
+    head = index + 1;
+    return result;
+  }
+
+}
@@ -1,6 +1,7 @@
 package jemu.core.device.keyboard;
 
 import java.awt.event.*;
+import java.nio.*;
 import java.util.*;
 import jemu.core.*;
 import jemu.core.device.*;
@@ -23,8 +24,10 @@ public class MatrixKeyboard extends Device {
   // Each key has a count of Java keys pressed for that key
   protected int[][] keyMap;
 
-  // Each Integer Java key is mapped in this table to a mapping array
-  protected Hashtable mappings = new Hashtable();
+  // The keys each Java key code is mapped to, packed as row << 16 | col, with those only for
+  // the key on the right of the keyboard kept apart. Tables grow to fit the codes mapped.
+  protected int[][] mappings = new int[0][];
+  protected int[][] rightMappings = new int[0][];
 
   public MatrixKeyboard(String type, int cols, int rows) {
     super("Matrix Keyboard");
@@ -39,6 +42,28 @@ public class MatrixKeyboard extends Device {
     }
   }
 
+  public void saveState(ByteBuffer buffer) {
+    for (int row = 0; row < keyMap.length; row++)
+      putInts(buffer,keyMap[row]);
+    // Only the few words of pressMap with keys held are kept
+    int count = 0;
+    for (int i = 0; i < pressMap.length; i++)
+      if (pressMap[i] != 0)
+        count++;
+    buffer.putInt(count);
+    for (int i = 0; i < pressMap.length; i++)
+      if (pressMap[i] != 0)
+        buffer.putInt(i).putInt(pressMap[i]);
+  }
+
+  public void loadState(ByteBuffer buffer) {
+    for (int row = 0; row < keyMap.length; row++)
+      getInts(buffer,keyMap[row]);
+    Arrays.fill(pressMap,0);
+    for (int count = buffer.getInt(); count > 0; count--)
+      pressMap[buffer.getInt()] = buffer.getInt();
+  }
+
   protected void setKeyMap(int col, int row, int value) {
     int oldValue = keyMap[row][col];
     if (oldValue != value) {
@@ -55,13 +80,26 @@ public class MatrixKeyboard extends Device {
 
   protected void keyChanged(int col, int row, int oldValue, int newValue) { }
 
+  /** Presses (step 1) or releases (step -1) a key in the matrix, as keys mapped to it do */
+  public void changeKey(int col, int row, int step) {
+    setKeyMap(col, row, Math.max(0, keyMap[row][col] + step));
+  }
+
   public void addKeyMapping(int key, int col, int row) {
-    KeyMapping mapping = (KeyMapping)mappings.get(new Integer(key));
-    if (mapping == null) {
-      mapping = new KeyMapping();
-      mappings.put(new Integer(key),mapping);
+    boolean right = (key & KEY_RIGHT) != 0;
+    key &= KEY_RIGHT - 1;
+    int[][] table = right ? rightMappings : mappings;
+    if (key >= table.length) {
+      int[][] value = new int[key + 1][];
+      System.arraycopy(table,0,value,0,table.length);
+      table = value;
+      if (right)
+        rightMappings = table;
+      else
+        mappings = table;
     }
-    mapping.addMapping(col,row);
+    int[] mapping = table[key] == null ? new int[0] : table[key];
+    table[key] = Util.arrayInsert(mapping, mapping.length, 1, row << 16 | col);
   }
   
   public void addKeyMappings(int[] map) {
@@ -80,12 +118,19 @@ public class MatrixKeyboard extends Device {
   }
 
   public void removeKeyMapping(int key, int col, int row) {
-    KeyMapping mapping = (KeyMapping)mappings.get(new Integer(key));
-    if (mapping != null) {
-      mapping.removeMapping(col,row);
-      if (mapping.getCount() == 0)
-        mappings.remove(mapping);
-    }
+    int[][] table = (key & KEY_RIGHT) != 0 ? rightMappings : mappings;
+    int[] mapping = getMapping(table,key & (KEY_RIGHT - 1));
+    if (mapping != null)
+      for (int i = 0; i < mapping.length; i++)
+        if (mapping[i] == (row << 16 | col)) {
+          mapping = Util.arrayDelete(mapping, i, 1);
+          table[key & (KEY_RIGHT - 1)] = mapping.length == 0 ? null : mapping;
+          break;
+        }
+  }
+  
+  protected int[] getMapping(int[][] table, int key) {
+    return key >= 0 && key < table.length ? table[key] : null;
   }
 
   public void keyPressed(int key) {
@@ -110,13 +155,14 @@ public class MatrixKeyboard extends Device {
     boolean right = location == KeyEvent.KEY_LOCATION_RIGHT;
     int offs = right ? 0x800 + key / 32 : key / 32;
     if (step != 1 || (pressMap[offs] & mask) == 0) {
-      KeyMapping mapping = null;
+      int[] mapping = null;
       if (right)
-        mapping = (KeyMapping)mappings.get(new Integer(key | KEY_RIGHT));
+        mapping = getMapping(rightMappings,key);
       if (mapping == null)
-        mapping = (KeyMapping)mappings.get(new Integer(key));
+        mapping = getMapping(mappings,key);
       if (mapping != null)
-        mapping.keyChange(step);
+        for (int i = 0; i < mapping.length; i++)
+          changeKey(mapping[i] & 0xffff, mapping[i] >> 16, step);
       if (step == 1)
         pressMap[offs] |= mask;
       else
@@ -124,37 +170,4 @@ public class MatrixKeyboard extends Device {
     }
   }
 
-  protected class KeyMapping {
-    protected int[] cols = new int[0];
-    protected int[] rows = new int[0];
-
-    protected void addMapping(int col, int row) {
-      cols = Util.arrayInsert(cols, cols.length, 1, col);
-      rows = Util.arrayInsert(rows, rows.length, 1, row);
-    }
-
-    protected void removeMapping(int col, int row) {
-      for (int i = 0; i < cols.length; i++) {
-        if (cols[i] == col && rows[i] == row) {
-          cols = Util.arrayDelete(cols, i, 1);
-          rows = Util.arrayDelete(rows, i, 1);
-          break;
-        }
-      }
-    }
-
-    protected int getCount() {
-      return cols.length;
-    }
-
-    protected void keyChange(int step) {
-      for (int i = 0; i < cols.length; i++) {
-        int col = cols[i];
-        int row = rows[i];
-        setKeyMap(col, row, Math.max(0, keyMap[row][col] + step));
-      }
-    }
-
-  }
-
 }
\ No newline at end of file
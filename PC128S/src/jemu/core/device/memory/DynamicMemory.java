@@ -11,6 +11,12 @@ public class DynamicMemory extends Memory {
   protected byte[] mem = new byte[0];
 
   protected int[] baseAddr;     // -1 if not loaded
+
+  // Generation of the last write to each page of mem, so changed pages can be found
+  public static final int PAGE_SHIFT = 12;
+  public static final int PAGE_SIZE  = 1 << PAGE_SHIFT;
+  protected int[] pageWrites = new int[0];
+  protected int generation = 1;
   
   public DynamicMemory(String type, int size, int banks) {
     super(type,size);
@@ -26,6 +32,7 @@ public class DynamicMemory extends Memory {
       if (mem.length > 0)
         System.arraycopy(mem, 0, newMem, 0, mem.length);
       mem = newMem;
+      pagesChanged();
     }
     return baseAddr[base];
   }
@@ -42,9 +49,34 @@ public class DynamicMemory extends Memory {
       for (int i = 0; i < baseAddr.length; i++)
         if (baseAddr[i] > start)
           baseAddr[i] -= size;
+      mem = newMem;
+      pagesChanged();
     }
   }
 
+  protected void pagesChanged() {
+    pageWrites = new int[(mem.length + PAGE_SIZE - 1) >> PAGE_SHIFT];
+    touch(0,mem.length);
+  }
+
+  /** Marks part of mem as written, for changes made other than by writeByte */
+  public void touch(int start, int length) {
+    for (int page = start >> PAGE_SHIFT; page << PAGE_SHIFT < start + length; page++)
+      pageWrites[page] = generation;
+  }
+
+  /**
+   * Starts a new write generation, returning the previous one. Pages written since are those
+   * with a generation in getPageWrites() greater than the value returned.
+   */
+  public int mark() {
+    return generation++;
+  }
+
+  public int[] getPageWrites() {
+    return pageWrites;
+  }
+
   public byte[] getMemory() {
     return mem;
   }
@@ -14,6 +14,9 @@ import jemu.core.device.Device;
 public abstract class Memory extends Device {
   
   protected int size;
+  
+  // Whether saveState includes the contents of memory, or only the mapping
+  protected boolean contentsSaved = true;
 
   public Memory(String type, int size) {
     super(type);
@@ -31,5 +34,13 @@ public abstract class Memory extends Device {
   public void writeByte(int address, int value, Object config) {
     writeByte(address,value);
   }
+  
+  public void setContentsSaved(boolean value) {
+    contentsSaved = value;
+  }
+  
+  public boolean isContentsSaved() {
+    return contentsSaved;
+  }
 
 }
\ No newline at end of file
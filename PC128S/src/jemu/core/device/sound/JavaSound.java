@@ -1,9 +1,11 @@
 package jemu.core.device.sound;
 
+import java.awt.*;
 import javax.sound.sampled.*;
 
 /**
- * Provides Mono or Stereo sound using the javax.sound.sampled API.
+ * Provides Mono or Stereo sound using the javax.sound.sampled API. Without a display, or if
+ * no line can be opened, the sound is discarded and timing is taken from the system clock.
  *
  * @author Richard Wilson
  */
@@ -11,10 +13,10 @@ public class JavaSound extends SunAudio {
   
   public static final int SAMPLE_RATE = 62500;
   
-  protected static AudioFormat STEREO_FORMAT = new AudioFormat(SAMPLE_RATE, 8, 2, false, false);
-  protected static AudioFormat MONO_FORMAT   = new AudioFormat(SAMPLE_RATE, 8, 1, false, false);
+  protected static final AudioFormat STEREO_FORMAT = new AudioFormat(SAMPLE_RATE, 8, 2, false, false);
+  protected static final AudioFormat MONO_FORMAT   = new AudioFormat(SAMPLE_RATE, 8, 1, false, false);
   
-  protected SourceDataLine line;
+  protected SourceDataLine line;    // null when silent
   protected byte[] data;
   protected int offset = 0;
   protected int channels;
@@ -41,6 +43,9 @@ public class JavaSound extends SunAudio {
     channels = stereo ? 2 : 1;
     data = new byte[samples * channels];
     AudioFormat fmt = stereo ? STEREO_FORMAT : MONO_FORMAT;
+    // Many headless instances may run in one process, each of which would hold a line
+    if (GraphicsEnvironment.isHeadless())
+      return;
     try {
       line = AudioSystem.getSourceDataLine(fmt);
       line.open(fmt, SAMPLE_RATE / 12 * channels);
@@ -49,11 +54,16 @@ public class JavaSound extends SunAudio {
         line.getClass());
     } catch(Exception e) {
       e.printStackTrace();
+      line = null;
     }
   }
   
   @Override
   public void resync() {
+    if (line == null) {
+      startCount = clock();
+      return;
+    }
     line.flush();
     
     startCount = line.getLongFramePosition();
@@ -77,9 +87,16 @@ public class JavaSound extends SunAudio {
   
   @Override
   public long getCount() {
+    if (line == null)
+      return clock() - startCount;
     return line.getLongFramePosition() - startCount - (getDeviation() / 2);
   }
   
+  // The number of samples which would have been played by now
+  protected long clock() {
+    return System.nanoTime() / (1000000000L / SAMPLE_RATE);
+  }
+  
   @Override
   public long getDeviation() {
     return SAMPLE_RATE / 25;    // 100 ms
@@ -88,17 +105,20 @@ public class JavaSound extends SunAudio {
   @Override
   public void play() {
     resync();
-    line.start();
+    if (line != null)
+      line.start();
   }
   
   @Override
   public void stop() {
-    line.stop();
+    if (line != null)
+      line.stop();
   }
   
   @Override
   public void dispose()  {
-    line.close();
+    if (line != null)
+      line.close();
   }
   
   @Override
@@ -108,7 +128,8 @@ public class JavaSound extends SunAudio {
       case SoundUtil.UPCM8: data[offset] = (byte)value; break;
     }
     if (++offset == data.length) {
-      line.write(data, 0, data.length);
+      if (line != null)
+        line.write(data, 0, data.length);
       offset = 0;
     }
     updates++;
@@ -128,7 +149,8 @@ public class JavaSound extends SunAudio {
         break;
     }
     if ((offset += 2) == data.length) {
-      line.write(data, 0, data.length);
+      if (line != null)
+        line.write(data, 0, data.length);
       offset = 0;
     }
     updates++;
@@ -1,5 +1,7 @@
 package jemu.core.device.sound;
 
+import java.nio.ByteBuffer;
+
 /**
  * Texas Instruments SN76489 Sound Generator Emulation.
  *
@@ -60,6 +62,34 @@ public class SN76489 extends SoundDevice {
     shiftReg = 0x8000;
   }
   
+  public void saveState(ByteBuffer buffer) {
+    putInts(buffer,tone);
+    putInts(buffer,count);
+    putInts(buffer,flip);
+    putInts(buffer,vol);
+    putInts(buffer,out);
+    buffer.putInt(lastTone).putInt(cycles).putInt(noiseRate).putInt(noiseCycles).putInt(shiftReg);
+    putBoolean(buffer,whiteNoise);
+    putBoolean(buffer,noiseShift4);
+    putBoolean(buffer,noiseShift8);
+  }
+  
+  public void loadState(ByteBuffer buffer) {
+    getInts(buffer,tone);
+    getInts(buffer,count);
+    getInts(buffer,flip);
+    getInts(buffer,vol);
+    getInts(buffer,out);
+    lastTone = buffer.getInt();
+    cycles = buffer.getInt();
+    noiseRate = buffer.getInt();
+    noiseCycles = buffer.getInt();
+    shiftReg = buffer.getInt();
+    whiteNoise = getBoolean(buffer);
+    noiseShift4 = getBoolean(buffer);
+    noiseShift8 = getBoolean(buffer);
+  }
+  
   public void setClockSpeed(int value) {
     clockSpeed = value;
   }
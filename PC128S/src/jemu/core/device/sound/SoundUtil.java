@@ -21,8 +21,8 @@ public class SoundUtil {
     return new JavaSound(44, stereo);
   }
   
-  protected static int[] ULAW_TO_PCM16 = new int[128];
-  protected static byte[] PCM16_TO_ULAW = new byte[8160];
+  protected static final int[] ULAW_TO_PCM16 = new int[128];
+  protected static final byte[] PCM16_TO_ULAW = new byte[8160];
   protected static final int[] PCM16_RANGE = { 0,    32,   96,   224,  480,  992,  2016, 4064, 8160 };
   protected static final int[] ULAW_PREFIX = { 0xf0, 0xe0, 0xd0, 0xc0, 0xb0, 0xa0, 0x90, 0x80 };
   static {
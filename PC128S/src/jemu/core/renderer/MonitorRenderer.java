@@ -1,5 +1,6 @@
 package jemu.core.renderer;
 
+import java.nio.ByteBuffer;
 import jemu.core.*;
 import jemu.core.renderer.Renderer;
 
@@ -66,6 +67,26 @@ public class MonitorRenderer extends Renderer {
     System.out.println("Frequency=" + value + ", adder=" + adder);
   }
 
+  public void saveState(ByteBuffer buffer) {
+    putInts(buffer, new int[] { hPos, monHFree, monHSync, monHHalf, hStart, hLess, hMore, vPos,
+      monitorLine, vSync });
+    putBoolean(buffer, inHSync);
+    putBoolean(buffer, hadHSync);
+    putBoolean(buffer, inVSync);
+  }
+
+  public void loadState(ByteBuffer buffer) {
+    int[] values = new int[10];
+    getInts(buffer, values);
+    hPos = values[0];        monHFree = values[1];    monHSync = values[2];
+    monHHalf = values[3];    hStart = values[4];      hLess = values[5];
+    hMore = values[6];       vPos = values[7];        monitorLine = values[8];
+    vSync = values[9];
+    inHSync = getBoolean(buffer);
+    hadHSync = getBoolean(buffer);
+    inVSync = getBoolean(buffer);
+  }
+
   public void hSyncStart() {
 /*    if (debug)
       System.out.println("HSync start: " + Integer.toHexString(hPos)); */
@@ -0,0 +1,239 @@
+package jemu.system.pc128s;
+
+import java.nio.*;
+import java.util.*;
+import jemu.core.cpu.*;
+import jemu.core.device.*;
+import jemu.core.device.keyboard.*;
+import jemu.core.device.memory.*;
+
+/**
+ * Types text into the PC128S as if on its keyboard, as fast as the MOS takes it. Each
+ * character presses its key in the keyboard matrix, with SHIFT if needed, until the MOS
+ * keyboard scan has put it in the keyboard buffer, then releases it for long enough for a
+ * scan to see no key down. A key is only pressed once the buffer is empty, so nothing typed
+ * is lost when a program flushes the buffer.
+ *
+ * Typed directly, characters are put straight into the keyboard buffer as fast as it has
+ * room, which is quicker but not seen by programs reading the keyboard matrix themselves.
+ *
+ * Timings are in processor cycles and the state is saved with the computer, so typing is
+ * repeated exactly when an input log is replayed (OS 5.1 locations).
+ *
+ * @author
+ */
+public class AutoType extends Device {
+
+  protected static final int KEY_STATUS   = 0x025a;  // Bit 4 clear while CAPS LOCK is on
+  protected static final int CAPS_LOCK    = 0x10;
+  protected static final int BUFFER_EMPTY = 0x02ce;  // Bit 7 set while the buffer is empty
+  protected static final int BUFFER_START = 0x02d7;  // Offset of the next character to remove
+  protected static final int BUFFER_END   = 0x02e0;  // Offset of the next character to insert
+  protected static final int BUFFER       = 0x0300;  // Keyboard buffer at offsets 0xe0..0xff
+  protected static final int BUFFER_FIRST = 0xe0;
+
+  protected static final int POLL_CYCLES    = 2000;    // 1ms between looks at the buffer
+  protected static final int RELEASE_CYCLES = 50000;   // Over two 10ms keyboard scans
+  protected static final int HOLD_CYCLES    = 200000;  // Longest press, under auto repeat
+
+  protected static final int SHIFT = 0x100;
+  protected static final int SHIFT_KEY = 0x00;
+  protected static final int CAPS_LOCK_KEY = 0x40;
+
+  protected static final int IDLE    = 0;
+  protected static final int WAITING = 1;   // For the buffer to empty
+  protected static final int HELD    = 2;   // Until the key is in the buffer
+  protected static final int RELEASED = 3;  // Until a scan has seen no key down
+
+  // Key number (row << 4 | column) of each character, with SHIFT if shifted, or -1
+  protected static final int[] KEYS = new int[0x80];
+
+  static {
+    Arrays.fill(KEYS,-1);
+    map(0x10,"q");  map(0x11,"3#"); map(0x12,"4$"); map(0x13,"5%"); map(0x15,"8(");
+    map(0x17,"-="); map(0x18,"^~"); map(0x21,"w");  map(0x22,"e");  map(0x23,"t");
+    map(0x24,"7'"); map(0x25,"i");  map(0x26,"9)"); map(0x27,"0");  map(0x28,"_`");
+    map(0x30,"1!"); map(0x31,"2\""); map(0x32,"d"); map(0x33,"r");  map(0x34,"6&");
+    map(0x35,"u");  map(0x36,"o");  map(0x37,"p");  map(0x38,"[{"); map(0x41,"a");
+    map(0x42,"x");  map(0x43,"f");  map(0x44,"y");  map(0x45,"j");  map(0x46,"k");
+    map(0x48,":*"); map(0x49,"\r"); map(0x51,"s");  map(0x52,"c");
+    map(0x53,"g");  map(0x54,"h");  map(0x55,"n");  map(0x56,"l");  map(0x57,";+");
+    map(0x58,"]}"); map(0x59,"\u007f"); map(0x60,"\t"); map(0x61,"z"); map(0x62," ");
+    map(0x63,"v");  map(0x64,"b");  map(0x65,"m");  map(0x66,",<"); map(0x67,".>");
+    map(0x68,"/?"); map(0x70,"\u001b"); map(0x78,"\\|");
+  }
+
+  // Maps the characters a key types unshifted and, if any, shifted
+  protected static void map(int key, String chars) {
+    KEYS[chars.charAt(0)] = key;
+    if (chars.length() > 1)
+      KEYS[chars.charAt(1)] = key | SHIFT;
+  }
+
+  protected Processor cpu;
+  protected Memory memory;
+  protected MatrixKeyboard keyboard;
+  protected StringBuffer text = new StringBuffer();
+  protected boolean direct = false;
+  protected int state = IDLE;
+  protected int key = -1;                 // Key held, with SHIFT if held with it
+  protected int end;                      // Buffer end when the key was pressed
+  protected int status;                   // Keyboard status when the key was pressed
+  protected long held;                    // Cycle the key was pressed
+  protected long next = Long.MAX_VALUE;   // Cycle of the next step
+
+  public AutoType(Processor cpu, Memory memory, MatrixKeyboard keyboard) {
+    super("Auto Type");
+    this.cpu = cpu;
+    this.memory = memory;
+    this.keyboard = keyboard;
+  }
+
+  /**
+   * Adds text to type, with lines ended by any of CR, LF or CRLF. Characters with no key are
+   * left out. This must be called between instructions.
+   */
+  public void add(String value, boolean direct) {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '\n' && i > 0 && value.charAt(i - 1) == '\r')
+        continue;
+      if (c == '\n')
+        c = '\r';
+      else if (c == '\u00a3')
+        c = '`';              // The pound sign
+      if (c < KEYS.length && KEYS[Character.toLowerCase(c)] != -1)
+        text.append(c);
+    }
+    if (state == IDLE && text.length() > 0) {
+      this.direct = direct;
+      state = WAITING;
+      step();
+    }
+  }
+
+  public boolean isTyping() {
+    return state != IDLE;
+  }
+
+  /** Returns the cycle at which step() must next be called */
+  public long getNext() {
+    return next;
+  }
+
+  /** Presses or releases the next key. This must be called between instructions. */
+  public void step() {
+    long cycles = cpu.getCycles();
+    switch (state) {
+      case WAITING:
+        if (text.length() == 0) {
+          finish();
+          return;
+        }
+        if (direct)
+          insert();
+        else if (memory.readByte(BUFFER_START) == memory.readByte(BUFFER_END))
+          press(cycles);
+        break;
+
+      case HELD:
+        if (memory.readByte(BUFFER_END) != end || cycles - held >= HOLD_CYCLES ||
+          ((memory.readByte(KEY_STATUS) ^ status) & CAPS_LOCK) != 0) {
+          release();
+          state = RELEASED;
+          next = cycles + RELEASE_CYCLES;
+          return;
+        }
+        break;
+
+      case RELEASED:
+        state = WAITING;
+        step();
+        return;
+    }
+    next = cycles + POLL_CYCLES;
+  }
+
+  protected void press(long cycles) {
+    char c = text.charAt(0);
+    status = memory.readByte(KEY_STATUS);
+    boolean caps = (status & CAPS_LOCK) == 0;
+    if (Character.isLowerCase(c) && caps)
+      key = CAPS_LOCK_KEY;    // SHIFT still types capitals, so CAPS LOCK is turned off first
+    else {
+      text.deleteCharAt(0);
+      key = KEYS[Character.toLowerCase(c)];
+      if (Character.isUpperCase(c) && !caps)
+        key |= SHIFT;
+    }
+    if ((key & SHIFT) != 0)
+      keyboard.changeKey(SHIFT_KEY & 0x0f,SHIFT_KEY >> 4,1);
+    keyboard.changeKey(key & 0x0f,(key >> 4) & 0x07,1);
+    end = memory.readByte(BUFFER_END);
+    held = cycles;
+    state = HELD;
+  }
+
+  protected void release() {
+    if (key != -1) {
+      keyboard.changeKey(key & 0x0f,(key >> 4) & 0x07,-1);
+      if ((key & SHIFT) != 0)
+        keyboard.changeKey(SHIFT_KEY & 0x0f,SHIFT_KEY >> 4,-1);
+      key = -1;
+    }
+  }
+
+  // Puts as many characters as there is room for in the keyboard buffer
+  protected void insert() {
+    int start = memory.readByte(BUFFER_START);
+    int offs = memory.readByte(BUFFER_END);
+    int count = 0;
+    while (text.length() > 0) {
+      int after = offs == 0xff ? BUFFER_FIRST : offs + 1;
+      if (after == start)
+        break;
+      memory.writeByte(BUFFER + offs,text.charAt(0));
+      text.deleteCharAt(0);
+      offs = after;
+      count++;
+    }
+    if (count != 0) {
+      memory.writeByte(BUFFER_END,offs);
+      memory.writeByte(BUFFER_EMPTY,memory.readByte(BUFFER_EMPTY) & 0x7f);
+      cpu.memoryChanged();
+    }
+  }
+
+  protected void finish() {
+    release();
+    text.setLength(0);
+    state = IDLE;
+    next = Long.MAX_VALUE;
+  }
+
+  public void reset() {
+    finish();
+  }
+
+  public void saveState(ByteBuffer buffer) {
+    buffer.putInt(state).putInt(key).putInt(end).putInt(status).putLong(held).putLong(next);
+    putBoolean(buffer,direct);
+    buffer.putInt(text.length());
+    for (int i = 0; i < text.length(); i++)
+      buffer.putChar(text.charAt(i));
+  }
+
+  public void loadState(ByteBuffer buffer) {
+    state = buffer.getInt();
+    key = buffer.getInt();
+    end = buffer.getInt();
+    status = buffer.getInt();
+    held = buffer.getLong();
+    next = buffer.getLong();
+    direct = getBoolean(buffer);
+    text.setLength(0);
+    for (int count = buffer.getInt(); count > 0; count--)
+      text.append(buffer.getChar());
+  }
+
+}
@@ -0,0 +1,265 @@
+package jemu.system.pc128s;
+
+import jemu.core.cpu.*;
+
+/**
+ * High level emulation of the hottest routines of the PC128S BASIC ROM (BASIC48.ROM): the
+ * search for a line by number used by GOTO, GOSUB and RESTORE, the unpacking of a real
+ * variable into the floating point accumulator and the mantissa multiply of real
+ * multiplication. Cycles are counted per instruction as the ROM code runs here.
+ *
+ * Zero page use: 0x18 PAGE, 0x2a line number, 0x2e..0x35 FWA (sign, overflow, exponent,
+ * mantissa, rounding), 0x3b..0x41 FWB (sign, exponent, mantissa, rounding), 0x42..0x45
+ * multiplier and 0x4a variable address.
+ *
+ * @author
+ */
+public class BasicHooks extends RomHooks {
+
+  public static final long CRC = 0x7890765aL;
+
+  public static final int FIND_LINE = 0x80d0;
+  public static final int UNPACK    = 0xa433;
+  public static final int MULTIPLY  = 0xa65d;
+
+  protected static final int NORMALISE = 0x8225;  // Where MULTIPLY goes if not normalised
+
+  protected static final int FC = 0x01;
+  protected static final int FZ = 0x02;
+  protected static final int FD = 0x08;
+  protected static final int FV = 0x40;
+  protected static final int FN = 0x80;
+
+  protected static final int MAX_LINES = 0x8000;  // Lines searched before leaving it to the ROM
+
+  protected MC65C12 mc65c12;
+
+  public BasicHooks() {
+    super(CRC,0x8000,new int[] { FIND_LINE, UNPACK, MULTIPLY });
+  }
+
+  public void install(Processor cpu) {
+    super.install(cpu);
+    mc65c12 = (MC65C12)cpu;
+  }
+
+  protected boolean call(int address) {
+    if ((mc65c12.getRegisterValue(5) & FD) != 0)
+      return false;       // The ROM never runs in decimal mode
+    switch (address) {
+      case FIND_LINE: return findLine();
+      case UNPACK:    return unpack();
+      case MULTIPLY:  return multiply();
+    }
+    return false;
+  }
+
+  // Cycles for LDA (zp),Y with the pointer at address
+  protected static int indirect(int address, int y) {
+    return (address & 0xff) + y > 0xff ? 6 : 5;
+  }
+
+  protected static int branch(boolean taken) {
+    return taken ? 3 : 2;
+  }
+
+  protected static int flags(int p, int mask, int value) {
+    return p & ~mask | value & mask;
+  }
+
+  protected void leave(int cycles, int a, int y, int p) {
+    mc65c12.setA(a);
+    mc65c12.setY(y);
+    mc65c12.setStatus(p);
+    charge(cycles);
+    mc65c12.returnFromSubroutine();
+  }
+
+  /**
+   * Finds the line numbered 0x2a from PAGE, leaving its address, or that of the next line,
+   * at 0x3d. Carry and zero are set if it was found.
+   */
+  protected boolean findLine() {
+    int lo = readByte(0x2a);
+    int hi = readByte(0x2b);
+    int line = readByte(0x18) << 8;
+    int p = mc65c12.getRegisterValue(5);
+    int cycles = 9;                                 // STZ, LDA, STA
+    int a;
+    boolean found;
+    for (int count = 0; ; count++) {
+      if (count == MAX_LINES)
+        return false;                               // Not a program
+      a = readByte(line + 1);
+      cycles += 2 + indirect(line,1) + 3;           // LDY, LDA, CMP
+      cycles += branch(a >= hi);                    // BCS
+      if (a >= hi) {
+        cycles += branch(a != hi);                  // BNE
+        if (a != hi) {
+          found = false;
+          break;
+        }
+        a = readByte(line + 2);
+        cycles += 2 + indirect(line,2) + 3;         // INY, LDA, CMP
+        cycles += branch(a < lo);                   // BCC
+        if (a >= lo) {
+          cycles += branch(a != lo);                // BNE
+          found = a == lo;
+          break;
+        }
+      }
+      int length = readByte(line + 3);
+      int sum = (line & 0xff) + length;
+      p = flags(p,FV,((length ^ sum) & (line ^ sum) & 0x80) != 0 ? FV : 0);
+      cycles += 2 + indirect(line,3) + 3 + 3;       // LDY, LDA, ADC, STA
+      cycles += branch(sum < 0x100);                // BCC
+      if (sum >= 0x100)
+        cycles += 5 + 3;                            // INC, BRA
+      line = (line & 0xff00) + sum & 0xffff;
+    }
+    writeByte(0x3d,line);
+    writeByte(0x3e,line >> 8);
+    if (found)
+      p = flags(p,FN | FZ | FC,FZ | FC);
+    else {
+      cycles += 2 + 2;                              // LDY, CLC
+      p = flags(p,FN | FZ | FC,0);
+    }
+    leave(cycles,a,2,p);
+    return true;
+  }
+
+  /** Unpacks the real variable at the address at 0x4a into FWB */
+  protected boolean unpack() {
+    int var = readByte(0x4a) | readByte(0x4b) << 8;
+    int sign = readByte(var + 1);
+    int exponent = readByte(var);
+    int mantissa = readByte(var + 2) | readByte(var + 3) | readByte(var + 4);
+    int cycles = 3 + 2 + 4 * 3 + 3 * 2;             // STZ, LDY, STA * 4, DEY * 3
+    for (int y = 1; y <= 4; y++)
+      cycles += indirect(var,y);                    // LDA (zp),Y
+    cycles += 2 + 5 + 3;                            // TAY, LDA (zp), STA
+    int a;
+    cycles += branch(exponent != 0);                // BNE
+    if (exponent == 0) {
+      cycles += 2 + 3 * 3;                          // TYA, ORA * 3
+      cycles += branch((sign | mantissa) == 0);     // BEQ
+    }
+    if (exponent != 0 || (sign | mantissa) != 0) {
+      a = sign | 0x80;
+      cycles += 2 + 2;                              // TYA, ORA
+    }
+    else
+      a = 0;
+    cycles += 3;                                    // STA
+    writeByte(0x41,0);
+    writeByte(0x40,readByte(var + 4));
+    writeByte(0x3f,readByte(var + 3));
+    writeByte(0x3e,readByte(var + 2));
+    writeByte(0x3b,sign);
+    writeByte(0x3c,exponent);
+    writeByte(0x3d,a);
+    int p = mc65c12.getRegisterValue(5);
+    leave(cycles,a,sign,flags(p,FN | FZ,a == 0 ? FZ : a & FN));
+    return true;
+  }
+
+  /**
+   * Multiplies FWA by FWB, adding the exponents and multiplying the mantissas a bit of each
+   * byte of the multiplier at a time, as the ROM does, then goes on to normalise the result
+   * if it needs it.
+   */
+  protected boolean multiply() {
+    int[] z = new int[0x48];
+    for (int i = 0x2e; i < z.length; i++)
+      z[i] = readByte(i);
+    int p = mc65c12.getRegisterValue(5);
+    int s = mc65c12.getRegisterValue(3);
+    int x = mc65c12.getRegisterValue(1);
+    int cycles = 2 + 3 + 3 + 5 + 2 + 3;             // CLC, LDA, ADC, ROL, SBC, STA
+    int sum = z[0x30] + z[0x3c];
+    int c = sum >> 8;
+    int a = sum & 0xff;
+    int carry = z[0x2f] >> 7;
+    z[0x2f] = (z[0x2f] << 1 | c) & 0xff;
+    int diff = a - 0x7f - (1 - carry);
+    int v = ((a ^ 0x7f) & (a ^ diff) & 0x80) != 0 ? FV : 0;
+    c = diff < 0 ? 0 : 1;
+    z[0x30] = diff & 0xff;
+    cycles += branch(c != 0);                       // BCS
+    if (c == 0) {
+      z[0x2f] = (z[0x2f] - 1) & 0xff;
+      cycles += 5;                                  // DEC
+    }
+    z[0x2e] ^= z[0x3b];
+    cycles += 3 + 3 + 3 + 3 + 2 + 2;                // LDA, EOR, STA, PHX, LDX, LDY
+    writeByte(0x100 + s,x);
+    // The mantissa is moved to the multiplier, least significant byte first
+    for (int i = 0; i < 4; i++) {
+      z[0x45 - i] = z[0x31 + i];
+      z[0x31 + i] = 0;
+      cycles += 4 + 3 + 5 + 2 + 2 + branch(i < 3); // LDA, STZ, STA, INX, DEY, BNE
+    }
+    z[0x3c] = z[0x3b] = z[0x3a] = 0;
+    cycles += 3 + 3 + 3 + 3;                        // STZ * 3, BRA
+    int y = 0;
+    for (int outer = 0xfc; outer < 0x100; ) {
+      cycles += 4;                                  // LDA &46,X
+      cycles += branch(z[outer - 0xba] != 0);       // BNE
+      if (z[outer - 0xba] == 0) {
+        outer++;
+        cycles += 2 + branch(outer < 0x100);        // INX, BMI
+        continue;
+      }
+      // Shifts FWB right a bit and adds it for the top bit of each byte of the multiplier
+      writeByte(0x100 + ((s - 1) & 0xff),outer);
+      cycles += 3 + 5 * 5;                          // PHX, LSR, ROR * 4
+      for (int i = 0x3d; i <= 0x41; i++) {
+        int value = z[i] | (i == 0x3d ? 0 : c << 8);
+        c = value & 0x01;
+        z[i] = value >> 1;
+      }
+      for (int inner = outer; inner < 0x100; inner++) {
+        int offs = inner - 0x100;
+        c = z[0x46 + offs] >> 7;
+        z[0x46 + offs] = (z[0x46 + offs] << 1) & 0xff;
+        cycles += 6 + branch(c == 0);               // ASL, BCC
+        if (c != 0) {
+          cycles += 2 + 2 + 4 + 2 + 4 * (3 + 4 + 3); // CLC, TYA, ADC, TAY, LDA, ADC, STA * 4
+          sum = y + z[0x42 + offs];
+          c = sum >> 8;
+          y = sum & 0xff;
+          for (int i = 0x34; i >= 0x31; i--) {
+            int add = z[i + 0x0d + offs];
+            sum = z[i] + add + c;
+            v = ((z[i] ^ sum) & (add ^ sum) & 0x80) != 0 ? FV : 0;
+            c = sum >> 8;
+            z[i] = sum & 0xff;
+          }
+        }
+        cycles += 2 + branch(inner < 0xff);         // INX, BMI
+      }
+      cycles += 4;                                  // PLX
+    }
+    cycles += 4 + 3 + 3;                            // PLX, STY, LDA
+    z[0x35] = y;
+    for (int i = 0x2e; i < z.length; i++)
+      writeByte(i,z[i]);
+    a = z[0x31];
+    p = flags(p,FN | FZ | FV | FC,(a == 0 ? FZ : a & FN) | v | c);
+    if ((a & 0x80) != 0) {
+      cycles += 3;                                  // BMI
+      leave(cycles,a,y,p);
+    }
+    else {
+      cycles += 2 + 3;                              // BMI, JMP
+      mc65c12.setA(a);
+      mc65c12.setY(y);
+      mc65c12.setStatus(p);
+      charge(cycles);
+      mc65c12.setPC(NORMALISE);
+    }
+    return true;
+  }
+
+}
@@ -0,0 +1,102 @@
+package jemu.system.pc128s;
+
+import java.io.*;
+import jemu.core.cpu.*;
+import jemu.core.device.memory.*;
+
+/**
+ * Connects the MOS character input and output to host streams, for running programs
+ * without a window. Traps on the MOS OSWRCH and OSRDCH routines copy each byte written to
+ * the VDU to an output stream and read characters from an input stream in place of the
+ * keyboard, with lines ended by any of CR, LF or CRLF read as RETURN. Output still reaches
+ * the screen. Once the input has ended, or if there is none, characters are read from the
+ * keyboard as usual.
+ *
+ * The routines are found from the NVWRCH and NVRDCH entry points, which jump straight to
+ * them, so the traps see the calls made through the vectors at 0x020e and 0x0210 and the
+ * entry points however the program reached them. Calls to a routine replacing a vector are
+ * only seen if it passes them on.
+ *
+ * @author
+ */
+public class HostConsole implements Processor.Trap {
+
+  public static final int NVRDCH = 0xffc8;    // JMP to the MOS OSRDCH routine
+  public static final int NVWRCH = 0xffcb;    // JMP to the MOS OSWRCH routine
+
+  protected static final int FC = 0x01;
+
+  protected MC65C12 cpu;
+  protected Memory memory;
+  protected OutputStream out;
+  protected InputStream in;
+  protected int last = -1;     // Last character read
+  protected int rdch;
+  protected int wrch;
+
+  /** Creates a console on the given streams, either of which may be null */
+  public HostConsole(MC65C12 cpu, Memory memory, OutputStream out, InputStream in) {
+    this.cpu = cpu;
+    this.memory = memory;
+    this.out = out;
+    this.in = in;
+  }
+
+  public void install() {
+    rdch = getJump(NVRDCH);
+    wrch = getJump(NVWRCH);
+    if (out != null)
+      cpu.setTrap(wrch,this);
+    if (in != null)
+      cpu.setTrap(rdch,this);
+  }
+
+  protected int getJump(int address) {
+    return memory.readByte(address + 1) | memory.readByte(address + 2) << 8;
+  }
+
+  public void remove() {
+    if (cpu.getTrap(wrch) == this)
+      cpu.setTrap(wrch,null);
+    if (cpu.getTrap(rdch) == this)
+      cpu.setTrap(rdch,null);
+  }
+
+  public boolean trap(Processor processor, int address) {
+    try {
+      if (address == wrch) {
+        out.write(cpu.getRegisterValue(0));
+        return false;
+      }
+      int value = in.read();
+      if (value == '\n' && last == '\r')
+        value = in.read();
+      last = value;
+      if (value == '\n')
+        value = '\r';
+      else if (value == -1) {
+        inputEnded();
+        return false;
+      }
+      cpu.setA(value);
+      cpu.setStatus(cpu.getRegisterValue(5) & ~FC);
+      cpu.returnFromSubroutine();
+      return true;
+    } catch (IOException e) {
+      e.printStackTrace();
+      cpu.setTrap(address,null);
+      return false;
+    }
+  }
+
+  /** Called when the input has ended, at the OSRDCH which found it had */
+  protected void inputEnded() {
+    cpu.setTrap(rdch,null);
+  }
+
+  public void flush() throws IOException {
+    if (out != null)
+      out.flush();
+  }
+
+}
@@ -0,0 +1,429 @@
+package jemu.system.pc128s;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import jemu.core.cpu.*;
+
+/**
+ * Serves files from a host directory ahead of the disc filing system. Traps on the extended
+ * vector entries of FILEV, FINDV, GBPBV, BGETV, BPUTV and ARGSV, and on the MOS FSCV routine,
+ * do OSFILE, OSFIND, OSGBPB, OSBGET, OSBPUT, OSARGS, EOF and *RUN for files found in the
+ * directory, loading and saving whole files in one copy between host and PC128S memory.
+ * Calls for files not found, and for handles not opened here, are passed on, so ADFS still
+ * works for discs which need it. Files are saved to the host directory.
+ *
+ * Names are looked up without regard to case, with '.' separating directories and '/' for a
+ * '.' in a host name. Load and execution addresses are kept in a .inf file alongside, as
+ * other emulators do, and files without one can only be loaded at a given address. Files
+ * opened here have handles from 0x60, clear of those of ADFS, and are not saved with the
+ * computer state, nor are changes to the files seen by input log replay.
+ *
+ * @author
+ */
+public class HostFiling implements Processor.Trap {
+
+  public static final int FILEV = 0xff1b;    // Extended vector entries
+  public static final int ARGSV = 0xff1e;
+  public static final int BGETV = 0xff21;
+  public static final int BPUTV = 0xff24;
+  public static final int GBPBV = 0xff27;
+  public static final int FINDV = 0xff2a;
+  // The MOS routine FSCV points to, which passes calls on to the filing system through its
+  // own copy of the vector, not through the extended vector entry (OS 5.1)
+  public static final int FSCV  = 0xfb2c;
+
+  public static final int FIRST_HANDLE = 0x60;
+  public static final int HANDLES = 16;
+
+  protected static final int[] ADDRESSES = { FILEV, ARGSV, BGETV, BPUTV, GBPBV, FINDV, FSCV };
+
+  protected static final int FC = 0x01;
+  protected static final int MAX_LENGTH = 0x10000;
+
+  protected MC65C12 cpu;
+  protected PC128SMemory memory;
+  protected File directory;
+  protected RandomAccessFile[] files = new RandomAccessFile[HANDLES];
+
+  public HostFiling(MC65C12 cpu, PC128SMemory memory, File directory) {
+    this.cpu = cpu;
+    this.memory = memory;
+    this.directory = directory;
+  }
+
+  public void install() {
+    for (int i = 0; i < ADDRESSES.length; i++)
+      cpu.setTrap(ADDRESSES[i],this);
+  }
+
+  public void remove() {
+    for (int i = 0; i < ADDRESSES.length; i++)
+      if (cpu.getTrap(ADDRESSES[i]) == this)
+        cpu.setTrap(ADDRESSES[i],null);
+    closeAll();
+  }
+
+  public boolean trap(Processor processor, int address) {
+    int a = cpu.getRegisterValue(0);
+    int x = cpu.getRegisterValue(1);
+    int y = cpu.getRegisterValue(2);
+    try {
+      switch (address) {
+        case FILEV: return file(a,x | y << 8);
+        case ARGSV: return args(a,x,y);
+        case BGETV: return bget(y);
+        case BPUTV: return bput(a,y);
+        case GBPBV: return gbpb(a,x | y << 8);
+        case FINDV: return find(a,x,y);
+        case FSCV:  return fsc(a,x,y);
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    return false;
+  }
+
+  // Returns from the vector, having done the call
+  protected boolean done() {
+    cpu.returnFromSubroutine();
+    return true;
+  }
+
+  protected void setCarry(boolean value) {
+    int p = cpu.getRegisterValue(5) & ~FC;
+    cpu.setStatus(value ? p | FC : p);
+  }
+
+  // OSFILE, with the control block at block
+  protected boolean file(int a, int block) throws IOException {
+    File file = find(readName(readWord(block)),a == 0x00);
+    if (file == null)
+      return false;
+    int[] info = readInfo(file);
+    switch (a) {
+      case 0x00: {
+        int start = readLong(block + 10);
+        int length = Math.max(0,Math.min(readLong(block + 14) - start,MAX_LENGTH));
+        ByteBuffer data = ByteBuffer.allocate(length);
+        memory.read(start,data,length);
+        data.flip();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+          out.getChannel().write(data);
+        } finally {
+          out.close();
+        }
+        writeInfo(file,readLong(block + 2),readLong(block + 6));
+        break;
+      }
+
+      case 0x01:
+      case 0x02:
+      case 0x03:
+        if (info == null)
+          info = new int[2];
+        writeInfo(file,a == 0x03 ? info[0] : readLong(block + 2),
+          a == 0x02 ? info[1] : readLong(block + 6));
+        break;
+
+      case 0x04:          // Attributes are those of the host file
+      case 0x05:
+        break;
+
+      case 0x06:
+        putInfo(block,file,info);
+        file.delete();
+        getInfoFile(file).delete();
+        cpu.setA(1);
+        return done();
+
+      case 0xff: {
+        int address = readLong(block + 2);
+        if (memory.readByte(block + 6) != 0) {
+          if (info == null)
+            return false;       // Nowhere to load it
+          address = info[0];
+        }
+        load(file,address);
+        break;
+      }
+
+      default:
+        return false;
+    }
+    putInfo(block,file,readInfo(file));
+    cpu.setA(1);
+    return done();
+  }
+
+  // OSFIND, opening the file named at YX or closing handle Y
+  protected boolean find(int a, int x, int y) throws IOException {
+    if (a == 0x00) {
+      if (y == 0) {
+        closeAll();
+        return false;     // Other filing systems close theirs too
+      }
+      int index = getIndex(y);
+      if (index == -1)
+        return false;
+      files[index].close();
+      files[index] = null;
+      return done();
+    }
+    File file = find(readName(x | y << 8),(a & 0xc0) == 0x80);
+    if (file == null)
+      return false;
+    int index = 0;
+    while (index < HANDLES && files[index] != null)
+      index++;
+    if (index == HANDLES)
+      cpu.setA(0);
+    else {
+      RandomAccessFile raf = new RandomAccessFile(file,(a & 0xc0) == 0x40 ? "r" : "rw");
+      if ((a & 0xc0) == 0x80)
+        raf.setLength(0);
+      files[index] = raf;
+      cpu.setA(FIRST_HANDLE + index);
+    }
+    return done();
+  }
+
+  protected boolean bget(int y) throws IOException {
+    int index = getIndex(y);
+    if (index == -1)
+      return false;
+    int value = files[index].read();
+    cpu.setA(value == -1 ? 0xfe : value);
+    setCarry(value == -1);
+    return done();
+  }
+
+  protected boolean bput(int a, int y) throws IOException {
+    int index = getIndex(y);
+    if (index == -1)
+      return false;
+    files[index].write(a);
+    return done();
+  }
+
+  // OSARGS for handle Y, with the value in zero page at X
+  protected boolean args(int a, int x, int y) throws IOException {
+    int index = getIndex(y);
+    if (index == -1)
+      return false;
+    RandomAccessFile raf = files[index];
+    switch (a) {
+      case 0x00: writeLong(x,(int)raf.getFilePointer(),true); break;
+      case 0x01: raf.seek(readLong(x,true) & 0xffffffffL); break;
+      case 0x02: writeLong(x,(int)raf.length(),true); break;
+      case 0x03: raf.setLength(readLong(x,true) & 0xffffffffL); break;
+    }
+    return done();
+  }
+
+  // OSGBPB 1 to 4, with the control block at block
+  protected boolean gbpb(int a, int block) throws IOException {
+    int index = a >= 0x01 && a <= 0x04 ? getIndex(memory.readByte(block)) : -1;
+    if (index == -1)
+      return false;
+    RandomAccessFile raf = files[index];
+    int address = readLong(block + 1);
+    int count = readLong(block + 5);
+    if (a == 0x01 || a == 0x03)
+      raf.seek(readLong(block + 9) & 0xffffffffL);
+    long position = raf.getFilePointer();
+    int length = (int)Math.min(count & 0xffffffffL,MAX_LENGTH);
+    if (a <= 0x02) {
+      ByteBuffer data = ByteBuffer.allocate(length);
+      memory.read(address,data,length);
+      data.flip();
+      raf.getChannel().write(data);
+    }
+    else {
+      length = (int)Math.max(0,Math.min(length,raf.length() - position));
+      memory.write(address,raf.getChannel().map(FileChannel.MapMode.READ_ONLY,position,length),
+        length);
+      raf.seek(position + length);
+    }
+    writeLong(block + 1,address + length,false);
+    writeLong(block + 5,count - length,false);
+    writeLong(block + 9,(int)raf.getFilePointer(),false);
+    cpu.setA(0);
+    setCarry(count != length);
+    return done();
+  }
+
+  // FSCV, for EOF and *RUN. Unknown * commands are not served, as ADFS takes them before
+  // the MOS would call FSC 3.
+  protected boolean fsc(int a, int x, int y) throws IOException {
+    switch (a) {
+      case 0x01: {
+        int index = getIndex(x);
+        if (index == -1)
+          return false;
+        RandomAccessFile raf = files[index];
+        cpu.setX(raf.getFilePointer() >= raf.length() ? 0xff : 0x00);
+        return done();
+      }
+
+      case 0x02:
+      case 0x04: {
+        File file = find(readName(x | y << 8),false);
+        int[] info = file == null ? null : readInfo(file);
+        if (info == null)
+          return false;
+        load(file,info[0]);
+        cpu.setPC(info[1]);     // The code returns from FSCV
+        return true;
+      }
+    }
+    return false;
+  }
+
+  protected int getIndex(int handle) {
+    int index = handle - FIRST_HANDLE;
+    return index >= 0 && index < HANDLES && files[index] != null ? index : -1;
+  }
+
+  public void closeAll() {
+    for (int i = 0; i < HANDLES; i++)
+      if (files[i] != null) {
+        try {
+          files[i].close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+        files[i] = null;
+      }
+  }
+
+  // Loads a file, mapped rather than read, copying it to memory in one go
+  protected void load(File file, int address) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file,"r");
+    try {
+      int length = (int)Math.min(raf.length(),MAX_LENGTH);
+      memory.write(address,raf.getChannel().map(FileChannel.MapMode.READ_ONLY,0,length),length);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Returns the host file of a name, or null if it has no file, unless create is true and
+   * only the file itself is missing. Names with wildcards are left to the disc.
+   */
+  protected File find(String name, boolean create) {
+    if (name.startsWith(":") && name.length() > 2 && name.charAt(2) == '.')
+      name = name.substring(3);   // Drive
+    if (name.startsWith("$."))
+      name = name.substring(2);
+    if (name.length() == 0 || name.indexOf('*') != -1 || name.indexOf('#') != -1)
+      return null;
+    File file = directory;
+    StringTokenizer parts = new StringTokenizer(name,".");
+    while (parts.hasMoreTokens()) {
+      String part = parts.nextToken().replace('/','.');
+      if (!file.isDirectory())
+        return null;
+      String[] list = file.list();
+      File match = null;
+      for (int i = 0; list != null && i < list.length && match == null; i++)
+        if (list[i].equalsIgnoreCase(part))
+          match = new File(file,list[i]);
+      if (match == null && (!create || parts.hasMoreTokens()))
+        return null;
+      file = match == null ? new File(file,part) : match;
+    }
+    return file.isDirectory() ? null : file;
+  }
+
+  // Reads a name ended by CR, space or a closing quote
+  protected String readName(int address) {
+    while (memory.readByte(address) == ' ')
+      address++;
+    boolean quoted = memory.readByte(address) == '"';
+    if (quoted)
+      address++;
+    StringBuffer result = new StringBuffer();
+    for (int i = 0; i < 0x100; i++) {
+      int value = memory.readByte((address + i) & 0xffff);
+      if (value == 0x0d || value == '"' || (value == ' ' && !quoted))
+        break;
+      result.append((char)value);
+    }
+    return result.toString();
+  }
+
+  protected File getInfoFile(File file) {
+    return new File(file.getPath() + ".inf");
+  }
+
+  // Returns the load and execution addresses of a file, or null if it has no .inf file
+  protected int[] readInfo(File file) {
+    File inf = getInfoFile(file);
+    if (inf.isFile()) {
+      try {
+        BufferedReader in = new BufferedReader(new FileReader(inf));
+        try {
+          StringTokenizer tokens = new StringTokenizer(in.readLine());
+          tokens.nextToken();
+          return new int[] {
+            (int)Long.parseLong(tokens.nextToken(),16), (int)Long.parseLong(tokens.nextToken(),16)
+          };
+        } finally {
+          in.close();
+        }
+      } catch (Exception e) {
+        System.out.println("Bad info file: " + inf);
+      }
+    }
+    return null;
+  }
+
+  protected void writeInfo(File file, int load, int exec) throws IOException {
+    PrintWriter out = new PrintWriter(new FileWriter(getInfoFile(file)));
+    try {
+      out.println("$." + file.getName().replace('.','/') + " " + hex(load) + " " + hex(exec) +
+        " " + hex((int)file.length()));
+    } finally {
+      out.close();
+    }
+  }
+
+  protected static String hex(int value) {
+    String result = Long.toHexString(value & 0xffffffffL).toUpperCase();
+    return "00000000".substring(result.length()) + result;
+  }
+
+  // Puts the addresses, length and attributes of a file in an OSFILE control block
+  protected void putInfo(int block, File file, int[] info) {
+    writeLong(block + 2,info == null ? 0 : info[0],false);
+    writeLong(block + 6,info == null ? 0 : info[1],false);
+    writeLong(block + 10,(int)file.length(),false);
+    writeLong(block + 14,file.canWrite() ? 0x03 : 0x01,false);
+  }
+
+  protected int readWord(int address) {
+    return memory.readByte(address) | memory.readByte((address + 1) & 0xffff) << 8;
+  }
+
+  protected int readLong(int address) {
+    return readLong(address,false);
+  }
+
+  // Reads 4 bytes, in zero page if zeroPage is true
+  protected int readLong(int address, boolean zeroPage) {
+    int result = 0;
+    for (int i = 3; i >= 0; i--)
+      result = result << 8 | memory.readByte((address + i) & (zeroPage ? 0xff : 0xffff));
+    return result;
+  }
+
+  protected void writeLong(int address, int value, boolean zeroPage) {
+    for (int i = 0; i < 4; i++, value >>= 8)
+      memory.writeByte((address + i) & (zeroPage ? 0xff : 0xffff),value);
+  }
+
+}
@@ -1,6 +1,7 @@
 package jemu.system.pc128s;
 
 import java.awt.event.*;
+import java.nio.*;
 import jemu.core.device.keyboard.*;
 import jemu.core.device.io.*;
 
@@ -67,6 +68,19 @@ public class Keyboard extends MatrixKeyboard {
       down[col] = 0;
   }
   
+  public void saveState(ByteBuffer buffer) {
+    super.saveState(buffer);
+    putInts(buffer,down);
+    buffer.put((byte)selCol).put((byte)selRow);
+  }
+  
+  public void loadState(ByteBuffer buffer) {
+    super.loadState(buffer);
+    getInts(buffer,down);
+    selCol = buffer.get();
+    selRow = buffer.get();
+  }
+  
   protected void keyChanged(int col, int row, int oldValue, int newValue) {
     if (row != 0) {  // SHIFT, CTRL and links don't cause an interrupt
       if (oldValue == 0)
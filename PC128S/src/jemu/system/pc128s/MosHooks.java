@@ -0,0 +1,219 @@
+package jemu.system.pc128s;
+
+import jemu.core.cpu.*;
+
+/**
+ * High level emulation of the VDU driver's block fill and copy routines in the PC128S MOS
+ * (OS51.ROM), which clear the screen, clear lines and scroll text windows a byte at a time
+ * with STA (zp),Y loops. Each page of a loop is done as a fill or copy of PC128SMemory, with
+ * the cycles of each instruction of the loop counted as the ROM code runs here.
+ *
+ * The top of each loop is hooked as well as the entry point, and a page is done at each
+ * call, so an interrupt arriving during a long fill is taken at the end of the page rather
+ * than at the end of the routine and the 100Hz clock does not lose ticks. Pages reaching
+ * below 0x0200 or above 0x7fff are left to the ROM code. A page of the screen is written at
+ * the start of the time charged for it rather than through it.
+ *
+ * Zero page use: 0xd8 destination and 0xda source, each offset by Y, with X + 1 pages and
+ * 0x358 the fill byte.
+ *
+ * @author
+ */
+public class MosHooks extends RomHooks {
+
+  public static final long CRC = 0x440f411fL;
+
+  public static final int FILL      = 0xcb84;
+  public static final int FILL_LOOP = 0xcb9a;
+  public static final int COPY      = 0xcbb4;
+  public static final int COPY_LOOP = 0xcbd2;
+
+  protected static final int FC = 0x01;
+  protected static final int FZ = 0x02;
+  protected static final int FD = 0x08;
+  protected static final int FV = 0x40;
+  protected static final int FN = 0x80;
+
+  protected static final int FILL_BYTE = 0x358;
+  protected static final int RAM_START = 0x0200;
+  protected static final int RAM_END   = 0x8000;
+
+  // Cycles for each byte written, and for a pair of them with the branch back
+  protected static final int FILL_BYTE_CYCLES = 5 + 2;                 // STA, INY
+  protected static final int FILL_PAIR_CYCLES = 2 * FILL_BYTE_CYCLES + 3;
+  protected static final int COPY_BYTE_CYCLES = 5 + 5 + 2;             // LDA, STA, INY
+  protected static final int COPY_PAIR_CYCLES = 2 * COPY_BYTE_CYCLES + 3;
+
+  protected MC65C12 mc65c12;
+  protected PC128SMemory ram;
+
+  public MosHooks(PC128SMemory ram) {
+    super(CRC,0xc000,new int[] { FILL, FILL_LOOP, COPY, COPY_LOOP });
+    this.ram = ram;
+  }
+
+  public void install(Processor cpu) {
+    super.install(cpu);
+    mc65c12 = (MC65C12)cpu;
+  }
+
+  protected boolean call(int address) {
+    if ((mc65c12.getRegisterValue(5) & FD) != 0)
+      return false;
+    switch (address) {
+      case FILL:      return fill();
+      case FILL_LOOP: return fillLoop();
+      case COPY:      return copy();
+      case COPY_LOOP: return copyLoop();
+    }
+    return false;
+  }
+
+  protected static int branch(boolean taken) {
+    return taken ? 3 : 2;
+  }
+
+  protected static boolean inRAM(int address, int length) {
+    return address >= RAM_START && address + length <= RAM_END;
+  }
+
+  /**
+   * Cycles taken by a page of a loop from its first Y written. The first page is entered at
+   * an INY, the others at the top of the loop.
+   */
+  protected static int getPageCycles(int start, int bytes, int pair) {
+    if (start == 0)
+      return 128 * pair - 1;
+    int cycles = 2;                 // INY
+    if ((start & 0x01) != 0) {
+      cycles += bytes;              // One byte before the pairs
+      start++;
+    }
+    return cycles + (start == 0x100 ? 2 : 3 + ((0x100 - start) >> 1) * pair - 1);
+  }
+
+  protected int getPointer(int address) {
+    return readByte(address) | readByte(address + 1) << 8;
+  }
+
+  // Adds Y to the pointer at address, returning the new pointer, the cycles taken and V
+  protected int[] offset(int address, int y) {
+    int pointer = getPointer(address);
+    int sum = (pointer & 0xff) + y;
+    int v = ((pointer ^ sum) & (y ^ sum) & 0x80) != 0 ? FV : 0;
+    int cycles = 2 + 2 + 3 + 3 + branch(sum > 0xff);    // TYA, CLC, ADC, STA, BCS
+    if (sum <= 0xff)
+      cycles += 5;                                      // DEC
+    pointer = (pointer & 0xff00) - (sum > 0xff ? 0 : 0x100) + (sum & 0xff) & 0xffff;
+    return new int[] { pointer, cycles, v };
+  }
+
+  /**
+   * Leaves a page of a loop after the DEX, going round again at the top of the loop or
+   * returning, with the flags other than N and Z in p.
+   */
+  protected void nextPage(int loop, int cycles, int a, int p) {
+    int x = (mc65c12.getRegisterValue(1) - 1) & 0xff;
+    mc65c12.setA(a);
+    mc65c12.setX(x);
+    mc65c12.setY(0);
+    p = p & ~(FN | FZ) | x & FN | (x == 0 ? FZ : 0);
+    if (x < 0x80) {
+      mc65c12.setStatus(p);
+      charge(cycles + branch(true));                    // BPL
+      mc65c12.setPC(loop);
+    }
+    else {
+      cycles += branch(false);                          // BPL
+      if (loop == COPY_LOOP) {
+        int s = (mc65c12.getRegisterValue(3) + 1) & 0xff;
+        mc65c12.setS(s);
+        p = readByte(0x100 + s);
+        cycles += 3;                                    // PLP
+      }
+      mc65c12.setStatus(p);
+      charge(cycles);
+      mc65c12.returnFromSubroutine();
+    }
+  }
+
+  /** Fills X + 1 pages less Y bytes from the address at 0xd8 with the byte at 0x358 */
+  protected boolean fill() {
+    int y = mc65c12.getRegisterValue(2);
+    int[] dest = offset(0xd8,y);
+    y = ~y & 0xff;
+    int start = y + 1;
+    if (!inRAM(dest[0] + start,0x100 - start))
+      return false;
+    writeByte(0xd8,dest[0]);
+    writeByte(0xd9,dest[0] >> 8);
+    int cycles = dest[1] + 2 + 2 + 2 + 2 + 4;         // TYA, EOR, TAY, LSR, LDA
+    cycles += (y & 0x01) != 0 ? 3 : 2 + 3;            // BCS, or BCS and BRA
+    int p = mc65c12.getRegisterValue(5) & ~(FV | FC);
+    fillPage(start,readByte(FILL_BYTE),cycles,p | dest[2] | y & FC);
+    return true;
+  }
+
+  protected boolean fillLoop() {
+    if (mc65c12.getRegisterValue(2) != 0 || !inRAM(getPointer(0xd8),0x100))
+      return false;     // Within a page, or not RAM
+    fillPage(0,mc65c12.getRegisterValue(0),0,mc65c12.getRegisterValue(5));
+    return true;
+  }
+
+  protected void fillPage(int start, int value, int cycles, int p) {
+    int base = getPointer(0xd8);
+    if (start < 0x100)
+      ram.fill(base + start,0x100 - start,value);
+    writeByte(0xd9,(base >> 8) + 1);
+    cycles += getPageCycles(start,FILL_BYTE_CYCLES,FILL_PAIR_CYCLES) + 5 + 2;   // INC, DEX
+    nextPage(FILL_LOOP,cycles,value,p);
+  }
+
+  /** Copies X + 1 pages less Y bytes from the address at 0xda to that at 0xd8 */
+  protected boolean copy() {
+    int y = mc65c12.getRegisterValue(2);
+    int[] source = offset(0xda,y);
+    int[] dest = offset(0xd8,y);
+    y = ~y & 0xff;
+    int start = y + 1;
+    if (!inRAM(source[0] + start,0x100 - start) || !inRAM(dest[0] + start,0x100 - start))
+      return false;
+    int p = mc65c12.getRegisterValue(5);
+    int s = mc65c12.getRegisterValue(3);
+    writeByte(0x100 + s,p);                             // PHP
+    mc65c12.setS((s - 1) & 0xff);
+    writeByte(0xda,source[0]);
+    writeByte(0xdb,source[0] >> 8);
+    writeByte(0xd8,dest[0]);
+    writeByte(0xd9,dest[0] >> 8);
+    int cycles = 3 + source[1] + dest[1] + 2 + 2 + 2 + 2;   // PHP, TYA, EOR, TAY, LSR
+    cycles += (y & 0x01) != 0 ? 3 : 2 + 3;                  // BCS, or BCS and BRA
+    copyPage(start,y >> 1,cycles,p & ~(FV | FC) | dest[2] | y & FC);
+    return true;
+  }
+
+  protected boolean copyLoop() {
+    if (mc65c12.getRegisterValue(2) != 0 || !inRAM(getPointer(0xda),0x100) ||
+      !inRAM(getPointer(0xd8),0x100))
+      return false;     // Within a page, or not RAM
+    copyPage(0,mc65c12.getRegisterValue(0),0,mc65c12.getRegisterValue(5));
+    return true;
+  }
+
+  protected void copyPage(int start, int a, int cycles, int p) {
+    int from = getPointer(0xda);
+    int to = getPointer(0xd8);
+    if (start < 0x100) {
+      ram.copy(from + start,to + start,0x100 - start);
+      a = readByte(from + 0xff);
+      // LDA (zp),Y takes a cycle more when it crosses a page
+      cycles += Math.min(0x100 - start,from & 0xff);
+    }
+    writeByte(0xdb,(from >> 8) + 1);
+    writeByte(0xd9,(to >> 8) + 1);
+    cycles += getPageCycles(start,COPY_BYTE_CYCLES,COPY_PAIR_CYCLES) + 5 + 5 + 2;  // INC * 2, DEX
+    nextPage(COPY_LOOP,cycles,a,p);
+  }
+
+}
@@ -3,16 +3,29 @@ package jemu.system.pc128s;
 import java.applet.Applet;
 import java.awt.Dimension;
 import java.awt.event.KeyEvent;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import jemu.core.Util;
 import jemu.core.cpu.MC65C12;
 import jemu.core.cpu.Processor;
 import jemu.core.device.Computer;
+import jemu.core.device.InputLog;
+import jemu.core.device.Snapshot;
+import jemu.core.device.WarmStart;
 import jemu.core.device.crtc.Basic6845;
 import jemu.core.device.crtc.SAA505x;
+import jemu.core.device.floppy.DiscCache;
+import jemu.core.device.floppy.DiscImage;
+import jemu.core.device.floppy.DiscWriter;
 import jemu.core.device.floppy.Drive;
 import jemu.core.device.floppy.WD1770;
+import jemu.core.device.hdd.IDEController;
+import jemu.core.device.hdd.IDEFile;
 import jemu.core.device.io.R6522;
+import jemu.core.device.io.Tube;
 import jemu.core.device.memory.Memory;
 import jemu.core.device.sound.SN76489;
 import jemu.ui.Display;
@@ -26,19 +39,31 @@ import jemu.util.diss.Diss65C12;
  */
 public class PC128S extends Computer {
   
-  protected static Dimension HALF_DISPLAY_SIZE = new Dimension(384,270);
-  protected static Dimension FULL_DISPLAY_SIZE = new Dimension(768,540);
+  protected static final Dimension HALF_DISPLAY_SIZE = new Dimension(384,270);
+  protected static final Dimension FULL_DISPLAY_SIZE = new Dimension(768,540);
   
   protected static final int CYCLES_PER_SECOND = 2000000;
   protected static final int AUDIO_TEST        = 0x40000000;
+  protected static final int BOOT_FRAMES       = 500;  // Frames to reach the language prompt
+  
+  protected static final String[] ROM_FILES = {
+    "OS51.ROM", "ADFS210.ROM", "BASIC48.ROM", "UTILS.ROM", "SAA5050.fnt"
+  };
+  protected static final int[] ROM_SIZES = { 0x4000, 0x4000, 0x4000, 0x4000, 0x360 };
   
   protected static final int SYS_VIA_PORT_A = 0;
   protected static final int SYS_VIA_PORT_B = 1;
   
   protected static final int SYS_VIA_INT_MASK  = 0x00001;
   protected static final int USER_VIA_INT_MASK = 0x00002;
+  protected static final int TUBE_INT_MASK     = 0x00004;
   protected static final int FDC_INT_MASK      = 0x10000;  // NMI
   
+  // The MOS only detects the Tube, so the host code comes from a sideways ROM
+  protected static final String TUBE_HOST_ROM   = "TUBEHOST.ROM";
+  protected static final String TUBE_CLIENT_ROM = "TUBE6502.ROM";
+  protected static final int TUBE_HOST_SLOT     = 0x0b;
+  
   protected static final int KEYBOARD_WRITE_ENABLE = 0x08;
   protected static final int SOUND_WRITE_ENABLE    = 0x01;
 
@@ -51,7 +76,9 @@ public class PC128S extends Computer {
   protected Video video = new Video(this);
   protected SN76489 psg = (SN76489)addDevice(new SN76489());
   protected WD1770 fdc = (WD1770)addDevice(new WD1770());
+  protected IDEController ide = (IDEController)addDevice(new IDEController());
   protected Keyboard keyboard = (Keyboard)addDevice(new Keyboard(sysVIA));
+  protected AutoType autoType = (AutoType)addDevice(new AutoType(cpu,memory,keyboard));
   protected Disassembler disassembler = new Diss65C12();
   protected int latchState = 0x00;
   protected int fdcControl = 0x01;
@@ -61,12 +88,30 @@ public class PC128S extends Computer {
   protected int audioAdd = psg.getSoundPlayer().getClockAdder(AUDIO_TEST,CYCLES_PER_SECOND >> 1);
   protected Drive[] floppies = new Drive[1];
   protected int acccon = 0;  
+  protected String bootKey = null;       // ROM set while waiting to take a warm start state
+  protected byte[][] bootROMs;
+  protected int bootFrames = 0;
+  protected boolean bootPrompt = false;
+  protected boolean bootReady = false;   // The prompt has been seen, so the state is taken
+  protected int ahead = 0;               // Frames left to run ahead
+  protected boolean shownAhead = false;  // The frame has been shown by running ahead
+  protected boolean frameEnded = false;  // A frame has ended since the last event
+  protected HostConsole console = null;
+  protected HostFiling hostFiling = null;
+  protected BasicHooks basicHooks = new BasicHooks();
+  protected MosHooks mosHooks = new MosHooks(memory);
+  protected boolean highLevel = false;
+  protected Tube tube = null;                      // Only while there is a second processor
+  protected SecondProcessor secondProcessor = null;
+  protected byte[] tubeHostROM = null;
   
   /** Creates a new instance of PC128S */
   public PC128S(Applet applet, String name) {
     super(applet,name);
     cpu.setMemoryDevice(this);
     cpu.setCycleDevice(this);
+    cpu.setEventDevice(this);
+    cpu.setShadowBanks(memory.ramBank);
     sysVIA.getPort(R6522.PORT_A).setInputDevice(this,SYS_VIA_PORT_A);
     sysVIA.getPort(R6522.PORT_A).setOutputDevice(this,SYS_VIA_PORT_A);
     sysVIA.getPort(R6522.PORT_B).setOutputDevice(this,SYS_VIA_PORT_B);
@@ -91,35 +136,221 @@ public class PC128S extends Computer {
     memory.loadROM(0x08,new byte[0x4000]);
     memory.loadROM(0x09,new byte[0x4000]);
     memory.loadROM(0x0a,new byte[0x4000]);
-    memory.loadROM(0x0b,new byte[0x4000]);
-    memory.setOSROM(getFile(romPath + "OS51.ROM",0x4000));
-    memory.loadROM(0x0d,getFile(romPath + "ADFS210.ROM",0x4000));
-    memory.loadROM(0x0e,getFile(romPath + "BASIC48.ROM",0x4000));
-    memory.loadROM(0x0f,getFile(romPath + "UTILS.ROM",0x4000));
+    memory.loadROM(TUBE_HOST_SLOT,tubeHostROM != null ? tubeHostROM : new byte[0x4000]);
+    // A state taken after booting with the same ROMs replaces booting, and if this process
+    // already has one the ROMs are not loaded again either
+    String[] names = new String[ROM_FILES.length];
+    for (int i = 0; i < names.length; i++)
+      names[i] = romPath + ROM_FILES[i];
+    String key = WarmStart.getKey(names);
+    // States taken without the Tube would not see it, so it always boots
+    boolean warmBoot = warmStart && tube == null;
+    WarmStart warm = warmBoot ? WarmStart.get(key) : null;
+    byte[][] roms = warm != null ? warm.getROMs() : new byte[names.length][];
+    if (warm == null) {
+      for (int i = 0; i < names.length; i++)
+        roms[i] = getFile(names[i],ROM_SIZES[i]);
+      if (warmBoot)
+        warm = WarmStart.get(key,roms);
+    }
+    memory.setOSROM(roms[0]);
+    mosHooks.recognise(roms[0]);
+    memory.loadROM(0x0d,roms[1]);
+    memory.loadROM(0x0e,roms[2]);
+    basicHooks.recognise(roms[2]);
+    memory.loadROM(0x0f,roms[3]);
     video.setMemory(memory.getMemory());
-    saa.setCharacterROM(getFile(romPath + "SAA5050.fnt",0x360));
+    saa.setCharacterROM(roms[4]);
     //fdc.getDrive().setDisc(3,new PC128SDiscImage("Welcome Disc",getFile(filePath + "welcome.zip")));
     psg.getSoundPlayer().play();
     super.initialise();
+    if (warm != null) {
+      try {
+        warm.getSnapshot().restore(this);
+        return;
+      } catch (Exception e) {
+        e.printStackTrace();
+        reset();
+      }
+    }
+    if (warmBoot) {
+      bootKey = key;
+      bootROMs = roms;
+      bootFrames = 0;
+      bootPrompt = false;
+      bootReady = false;
+    }
+  }
+  
+  /**
+   * Waits for booting to reach the prompt of the language ROM, which has been entered and is
+   * paged in, with the text cursor just after the prompt (OS 5.1 locations). This is seen for
+   * two frames before the warm start state is taken at the next instruction boundary.
+   */
+  protected void checkBoot() {
+    byte[] mem = memory.getMemory();
+    int language = mem[0x028c] & 0xff;
+    boolean prompt = language != 0 && language != 0xff && (mem[0xf4] & 0xff) == language &&
+      mem[0x0318] == 1;
+    if (prompt && bootPrompt) {
+      bootReady = true;
+      cpu.requestEvent();
+    }
+    else if (++bootFrames > BOOT_FRAMES)
+      bootKey = null;
+    bootPrompt = prompt;
+  }
+  
+  public int event(int id) {
+    if (id == Processor.EVENT_BOUNDARY) {
+      // Input waits for the real frames, as run ahead frames are thrown away
+      if (ahead == 0) {
+        applyKeys();
+        if (cpu.getCycles() >= autoType.getNext())
+          autoType.step();
+      }
+      // Events come while booting for other reasons too, such as recording frames to rewind
+      if (bootKey != null && bootReady) {
+        Snapshot snapshot = new Snapshot();
+        snapshot.save(this);
+        WarmStart.put(bootKey,new WarmStart(WarmStart.getDigest(bootROMs),bootROMs,snapshot));
+        bootKey = null;
+        bootROMs = null;
+        bootReady = false;
+      }
+      if (frameEnded) {
+        frameEnded = false;
+        if (rewind != null)
+          rewind.record();
+        // Discs are not run ahead as they would be written
+        // Nor is the Tube, as the second processor would see the frames run ahead
+        if (runAhead != null && runAhead.getFrames() > 0 && frameSkip == 0 && !warp &&
+          bootKey == null && !isDiscActive() && tube == null)
+          runAhead();
+      }
+    }
+    return 0;
+  }
+  
+  /**
+   * Runs ahead with the current input to render a later frame, then puts the state back so the
+   * frame is run again for real, without rendering or sound. Keys only change between
+   * instructions of real frames, so any that arrive meanwhile are applied once the state has
+   * been put back.
+   */
+  protected void runAhead() {
+    runAhead.save();
+    ahead = runAhead.getFrames();
+    video.setRendering(ahead == 1);
+    try {
+      while (ahead > 0)
+        cpu.step();
+    } finally {
+      ahead = 0;
+      runAhead.restore();
+      cpu.requestEvent();
+    }
+    video.setRendering(false);
+    shownAhead = true;
+  }
+  
+  protected boolean isDiscActive() {
+    for (int i = 0; i < floppies.length; i++)
+      if (floppies[i] != null && floppies[i].isActive())
+        return true;
+    return ide.isBusy();
   }
   
   public void dispose() {
     super.dispose();
     psg.getSoundPlayer().dispose();
+    closeDisc();
+    ide.setFile(null);
+    if (secondProcessor != null)
+      secondProcessor.dispose();
+  }
+  
+  protected void closeDisc() {
+    DiscImage disc = fdc.getDrive().getDisc(1);
+    if (disc != null) {
+      try {
+        disc.close();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }
   }
   
   public void reset() {
+    boolean run = running;
+    stop();
     //keyboard.reset();
     sysVIA.reset();
     userVIA.reset();
     fdc.reset();
+    ide.reset();
     //crtc.reset();
     psg.reset();
+    if (hostFiling != null)
+      hostFiling.closeAll();
+    if (tube != null)
+      tube.reset();
     super.reset();
+    if (run)
+      start();
+  }
+  
+  public void saveState(ByteBuffer buffer) {
+    super.saveState(buffer);
+    video.saveState(buffer);
+    for (int i = 0; i < floppies.length; i++)
+      floppies[i].saveState(buffer);
+    buffer.putInt(latchState).putInt(fdcControl).putInt(audioCount).putInt(acccon);
+    putBoolean(buffer,oddCycle);
+    putBoolean(buffer,oddFrame);
+  }
+  
+  public void loadState(ByteBuffer buffer) {
+    bootKey = null;
+    super.loadState(buffer);
+    video.loadState(buffer);
+    for (int i = 0; i < floppies.length; i++)
+      floppies[i].loadState(buffer);
+    latchState = buffer.getInt();
+    fdcControl = buffer.getInt();
+    audioCount = buffer.getInt();
+    acccon = buffer.getInt();
+    oddCycle = getBoolean(buffer);
+    oddFrame = getBoolean(buffer);
+    if (tube != null)
+      tube.reset();     // The second processor is not in the state, so it starts again
   }
   
   public void loadFile(int type, String name) throws Exception {
-	  fdc.getDrive().setDisc(3,new PC128SDiscImage(name,getFile(name)));
+	  bootKey = null;
+	  logInput(InputLog.LOAD_FILE,type,name);
+	  if (name.toLowerCase().endsWith(Snapshot.EXTENSION)) {
+	    Snapshot.read(new File(name)).restore(this);
+	    return;
+	  }
+	  if (name.toLowerCase().endsWith(".ide")) {
+	    // Hard disc images are only changed when writing back is enabled
+	    ide.setFile(new IDEFile(new File(name),!writeBack));
+	    return;
+	  }
+	  closeDisc();
+	  DiscWriter writer = null;
+	  File file = new File(name);
+	  if (writeBack && file.isFile() && !name.toLowerCase().endsWith(".zip"))
+	    writer = new DiscWriter(file);
+	  // Images not written back share their content with other instances
+	  ByteBuffer data = writer != null ? mapFile(name) : DiscCache.get(name,new DiscCache.Loader() {
+	    public ByteBuffer load(String name) throws Exception {
+	      return mapFile(name);
+	    }
+	  });
+	  fdc.getDrive().setDisc(3,new PC128SDiscImage(name,data,writer));
+	  fdc.getDrive().setWriteProtected(false);
   }
 
   public Memory getMemory() {
@@ -127,17 +358,23 @@ public class PC128S extends Computer {
   }
   
   public void cycle() {
+    if (tube != null)
+      tube.cycle();
     video.cycle();
     if (oddCycle = !oddCycle) {
       if ((latchState & KEYBOARD_WRITE_ENABLE) != 0)
         keyboard.cycle();
+      if (ahead == 0 && cpu.getCycles() >= autoType.getNext())
+        cpu.requestEvent();   // Keys are typed between instructions
       sysVIA.cycle();
       userVIA.cycle();
       fdc.cycle();
+      ide.cycle();
       psg.cycle(4);
       if ((audioCount += audioAdd) >= AUDIO_TEST) {
         //System.out.println("Audio Out:  " + cpu.getCycles());
-        psg.writeAudio();
+        if (!warp && ahead == 0)
+          psg.writeAudio();
         audioCount -= AUDIO_TEST;
       }
     }
@@ -151,8 +388,22 @@ public class PC128S extends Computer {
   long lastCycles;
 
   public void vSync() {
-    if (frameSkip == 0)
-      updateDisplay(true);
+    if (ahead > 0) {
+      // Only the last frame run ahead is rendered and shown
+      if (--ahead == 0)
+        updateDisplay(true);
+      video.setRendering(ahead == 1);
+      return;
+    }
+    if (bootKey != null)
+      checkBoot();
+    if (rewind != null || runAhead != null) {
+      frameEnded = true;
+      cpu.requestEvent();   // Frames are recorded or run ahead between instructions
+    }
+    if (frameSkip == 0 && !shownAhead)
+      updateDisplay(!warp);
+    shownAhead = false;
     syncProcessor();//psg.getSoundPlayer()
     lastCycles = cpu.getCycles();
   }
@@ -221,9 +472,14 @@ public class PC128S extends Computer {
           
           default: {     // 0xfee0..0xfeff - Tube reads
             //System.out.println("Tube read " + Util.hex((short)addr));
-            return 0;
+            return tube != null && addr >= 0xfee0 ? tube.readPort(addr) : 0;
           }
         }
+      }
+    	else if (addr >= 0xfc40 && addr < 0xfc50) {  // IDE hard disc, needs an IDE ADFS ROM
+        if (oddCycle) cpu.cycle();
+        cpu.cycle();
+        return ide.readPort(addr & 0x0f);
       }
       return 0xff;
     }
@@ -286,10 +542,17 @@ public class PC128S extends Computer {
           
           default: {     // 0xfee0..0xfeff - Tube write
             //System.out.println("Tube write " + Util.hex((short)addr) + "=" + Util.hex((byte)value));
+            if (tube != null && addr >= 0xfee0)
+              tube.writePort(addr,value);
             break;
           }
         }
       }
+      else if (addr >= 0xfc40 && addr < 0xfc50) {  // IDE hard disc
+        if (oddCycle) cpu.cycle();
+        cpu.cycle();
+        ide.writePort(addr & 0x0f,value);
+      }
       return value & 0xff;
     }
     return memory.writeByte(addr,value);
@@ -344,11 +607,70 @@ public class PC128S extends Computer {
   }
   
   public void keyPressed(KeyEvent e) {
-    keyboard.keyPressed(e.getKeyCode());
+    queueKey(e.getKeyCode(),true);
   }
   
   public void keyReleased(KeyEvent e) {
-    keyboard.keyReleased(e.getKeyCode());
+    queueKey(e.getKeyCode(),false);
+  }
+  
+  public boolean isTypingSupported() {
+    return true;
+  }
+  
+  protected void applyText(String text, boolean direct) {
+    bootKey = null;
+    autoType.add(text,direct);
+  }
+  
+  public void setConsole(OutputStream out, InputStream in) {
+    if (console != null)
+      console.remove();
+    console = out == null && in == null ? null : new HostConsole(cpu,memory,out,in);
+    if (console != null)
+      console.install();
+  }
+  
+  public void setHostDirectory(String name) {
+    if (hostFiling != null)
+      hostFiling.remove();
+    hostFiling = name == null ? null : new HostFiling(cpu,memory,new File(name));
+    if (hostFiling != null)
+      hostFiling.install();
+  }
+  
+  public void setHighLevel(boolean value) {
+    highLevel = value;
+    if (value && basicHooks.isRecognised())
+      basicHooks.install(cpu);
+    else
+      basicHooks.remove();
+    if (value && mosHooks.isRecognised())
+      mosHooks.install(cpu);
+    else
+      mosHooks.remove();
+  }
+  
+  public boolean isHighLevel() {
+    return highLevel;
+  }
+  
+  public void setHighLevelCycles(int percent) {
+    basicHooks.setCyclePercent(percent);
+    mosHooks.setCyclePercent(percent);
+  }
+  
+  public int getHighLevelCycles() {
+    return basicHooks.getCyclePercent();
+  }
+  
+  protected void applyKey(int code, boolean pressed) {
+    if (pressed) {
+      bootKey = null;     // The state after booting would include the key
+      keyboard.keyPressed(code);
+    }
+    else
+      keyboard.keyReleased(code);
   }
   
   public Disassembler getDisassembler() {
@@ -362,5 +684,64 @@ public class PC128S extends Computer {
   public Drive[] getFloppyDrives() {
     return floppies;
   }
+  
+  public void setClockMultiplier(int value) {
+    cpu.setClockMultiplier(value);
+  }
+  
+  public int getClockMultiplier() {
+    return cpu.getClockMultiplier();
+  }
+  
+  public void setTurboDisc(boolean value) {
+    fdc.setTurbo(value);
+  }
+  
+  public boolean isTurboDisc() {
+    return fdc.isTurbo();
+  }
+  
+  /**
+   * Connects a 6502 second processor through the Tube, or disconnects it, and resets the
+   * computer so the MOS sees the change. The host code comes from TUBEHOST.ROM, put in
+   * sideways slot 0x0b, and the client from TUBE6502.ROM, both in the ROM directory. Without
+   * them the Tube stays absent.
+   */
+  public void setCoprocessor(boolean value) {
+    if (value == (tube != null))
+      return;
+    if (value) {
+      byte[] host = getTubeROM(TUBE_HOST_ROM,0x4000);
+      byte[] client = host == null ? null : getTubeROM(TUBE_CLIENT_ROM,0x800);
+      if (client == null)
+        return;
+      tubeHostROM = host;
+      tube = new Tube();
+      tube.setHost(cpu,TUBE_INT_MASK);
+      secondProcessor = new SecondProcessor(tube,client);
+      secondProcessor.start();
+    }
+    else {
+      secondProcessor.dispose();
+      secondProcessor = null;
+      tube = null;
+      tubeHostROM = null;
+      cpu.clearInterrupt(TUBE_INT_MASK);
+    }
+    memory.loadROM(TUBE_HOST_SLOT,tubeHostROM != null ? tubeHostROM : new byte[0x4000]);
+    bootKey = null;
+    reset();
+  }
+  
+  // Returns a ROM for the Tube, or null if it is missing
+  protected byte[] getTubeROM(String name, int size) {
+    try {
+      openFile(romPath + name).close();
+    } catch (Exception e) {
+      System.out.println("Tube not connected without " + romPath + name);
+      return null;
+    }
+    return getFile(romPath + name,size);
+  }
 
 }
@@ -1,38 +1,107 @@
 package jemu.system.pc128s;
 
+import java.io.*;
+import java.nio.*;
+import java.util.*;
 import jemu.core.device.floppy.*;
 
 /**
  * Provide a PC128S Single Sided (SSD) or
  * TODO: Double Sided (DSD) disc image.
  *
+ * The image is held in one flat buffer, which may be mapped directly from the file, and
+ * sectors are returned as views onto it. The buffer is never written, so it may be shared
+ * with other instances through DiscCache. Written sectors are kept in a private overlay
+ * and, given a DiscWriter, written back to the file in the background.
+ *
  * @author Richard Wilson
  */
 public class PC128SDiscImage extends DiscImage {
   
-  protected byte[][][][] sectors;
+  public static final int CYLINDERS   = 80;
+  public static final int SECTORS     = 16;
+  public static final int SECTOR_SIZE = 256;
+  
+  protected static final ByteBuffer EMPTY = ByteBuffer.allocate(SECTOR_SIZE).asReadOnlyBuffer();
+  
+  protected ByteBuffer data;
+  protected int sides;
+  protected Hashtable written = new Hashtable();    // Offset -> sector data
+  protected DiscWriter writer;
   
   /** Creates a new instance of PC128SDiscImage */
   public PC128SDiscImage(String name, byte[] data) {
+    this(name,ByteBuffer.wrap(data),null);
+  }
+  
+  public PC128SDiscImage(String name, ByteBuffer data, DiscWriter writer) {
     super(name);
-    int side = data.length>320*1024?2:1;
-    sectors = new byte[80][2][16][256];
-    int index = 0;
-    for (int c = 0; c < 80; c++) {
-     for (int h = 0; h < side; h++) {
-      for (int r = 0; r < 16; r++) {
-        if (index < data.length) {
-          int size = Math.min(256,data.length - index);
-          System.arraycopy(data,index,sectors[c][h][r],0,size);
-          index += size;
-        }
-      }
-     }
+    this.data = data;
+    this.writer = writer;
+    sides = data.limit() > 320 * 1024 ? 2 : 1;
+  }
+  
+  protected int getOffset(int c, int h, int r) {
+    return c >= CYLINDERS || h >= sides || r >= SECTORS ? -1 :
+      ((c * sides + h) * SECTORS + r) * SECTOR_SIZE;
+  }
+  
+  public ByteBuffer getSectorBuffer(int cylinder, int head, int c, int h, int r, int n) {
+    if (c >= CYLINDERS || r >= SECTORS)
+      return null;
+    int offset = getOffset(c,h,r);
+    if (offset < 0)
+      return EMPTY.duplicate();
+    byte[] sector = (byte[])written.get(Integer.valueOf(offset));
+    if (sector != null)
+      return ByteBuffer.wrap(sector);
+    if (offset >= data.limit())
+      return EMPTY.duplicate();
+    ByteBuffer result;
+    if (offset + SECTOR_SIZE > data.limit()) {
+      // Pad the final partial sector
+      result = ByteBuffer.allocate(SECTOR_SIZE);
+      for (int i = 0; offset < data.limit(); i++)
+        result.put(i,data.get(offset++));
+    }
+    else {
+      result = data.duplicate();
+      result.limit(offset + SECTOR_SIZE);
+      result.position(offset);
+      result = result.slice();
     }
+    return result;
   }
 
   public byte[] readSector(int cylinder, int head, int c, int h, int r, int n) {
-    return c >= 80 || r >= 16 ? null : sectors[c][h][r];
+    ByteBuffer buffer = getSectorBuffer(cylinder,head,c,h,r,n);
+    if (buffer == null)
+      return null;
+    byte[] result = new byte[buffer.remaining()];
+    buffer.get(result);
+    return result;
+  }
+
+  public boolean writeSector(int cylinder, int head, int c, int h, int r, int n, byte[] data) {
+    int offset = getOffset(c,h,r);
+    if (offset < 0)
+      return false;
+    byte[] sector = new byte[SECTOR_SIZE];
+    System.arraycopy(data,0,sector,0,Math.min(SECTOR_SIZE,data.length));
+    written.put(Integer.valueOf(offset),sector);
+    if (writer != null)
+      writer.write(offset,sector);
+    return true;
+  }
+  
+  public void flush() throws IOException {
+    if (writer != null)
+      writer.flush();
+  }
+  
+  public void close() throws IOException {
+    if (writer != null)
+      writer.close();
   }
 
   public int[] getSectorID(int cylinder, int head, int index) {
@@ -40,7 +109,7 @@ public class PC128SDiscImage extends DiscImage {
   }
 
   public int getSectorCount(int cylinder, int head) {
-    return cylinder >= sectors.length ? 0 : sectors[cylinder].length;
+    return cylinder >= CYLINDERS ? 0 : SECTORS;
   }
   
 }
@@ -1,5 +1,7 @@
 package jemu.system.pc128s;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import jemu.core.Util;
 import jemu.core.cpu.MC65C12;
 import jemu.core.device.memory.DynamicMemory;
@@ -36,6 +38,43 @@ public class PC128SMemory extends DynamicMemory {
     for (int i = 0; i < 16; i++) ramBank[i]=0;
   }
   
+  /**
+   * Saves main and shadow RAM, sideways RAM and the current mapping. ROMs are not saved.
+   * The RAM is left out when contents are not being saved.
+   */
+  public void saveState(ByteBuffer buffer) {
+    if (contentsSaved) {
+      for (int bank = BASE_RAM; bank < BASE_ROM; bank++)
+        buffer.put(mem,baseAddr[bank],0x4000);
+      for (int slot = 4; slot < 8; slot++)
+        if (baseAddr[BASE_ROM + slot] != -1)
+          buffer.put(mem,baseAddr[BASE_ROM + slot],0x4000);
+    }
+    putInts(buffer,readMap);
+    putInts(buffer,writeMap);
+    putInts(buffer,ramBank);
+    putInts(buffer,memStat);
+    putBoolean(buffer,swram);
+    buffer.putInt(vidbank);
+  }
+  
+  public void loadState(ByteBuffer buffer) {
+    if (contentsSaved) {
+      for (int bank = BASE_RAM; bank < BASE_ROM; bank++)
+        buffer.get(mem,baseAddr[bank],0x4000);
+      for (int slot = 4; slot < 8; slot++)
+        if (baseAddr[BASE_ROM + slot] != -1)
+          buffer.get(mem,baseAddr[BASE_ROM + slot],0x4000);
+      touch(0,mem.length);
+    }
+    getInts(buffer,readMap);
+    getInts(buffer,writeMap);
+    getInts(buffer,ramBank);
+    getInts(buffer,memStat);
+    swram = getBoolean(buffer);
+    vidbank = buffer.getInt();
+  }
+  
   public int readByte(int address) {
 	int addr = readMap[address >> 12];
 	if (cpu.vis20k && addr>=0x3000 && addr<0x8000) addr+=vidbank;
@@ -49,8 +88,93 @@ public class PC128SMemory extends DynamicMemory {
 	if (cpu.vis20k && addr>=0x3000 && addr<0x8000) addr+=vidbank;
 	addr = addr + (address & 0x0fff);
 	mem[addr] = (byte)value;
+	pageWrites[addr >> PAGE_SHIFT] = generation;
     return value & 0xff;
   }
+
+  /**
+   * Copies bytes from a buffer to memory as writeByte would, a 4K page at a time. Bytes for
+   * ROM are skipped.
+   */
+  public void write(int address, ByteBuffer data, int length) {
+    while (length > 0) {
+      address &= 0xffff;
+      int count = Math.min(length,0x1000 - (address & 0x0fff));
+      int addr = writeMap[address >> 12];
+      if (addr == -1)
+        data.position(data.position() + count);
+      else {
+        if (cpu.vis20k && addr>=0x3000 && addr<0x8000) addr+=vidbank;
+        addr = addr + (address & 0x0fff);
+        data.get(mem,addr,count);
+        touch(addr,count);
+      }
+      address += count;
+      length -= count;
+    }
+    cpu.memoryChanged();
+  }
+
+  /** Fills memory as writeByte would, a 4K page at a time */
+  public void fill(int address, int length, int value) {
+    while (length > 0) {
+      address &= 0xffff;
+      int count = Math.min(length,0x1000 - (address & 0x0fff));
+      int addr = writeMap[address >> 12];
+      if (addr != -1) {
+        if (cpu.vis20k && addr>=0x3000 && addr<0x8000) addr+=vidbank;
+        addr = addr + (address & 0x0fff);
+        Arrays.fill(mem,addr,addr + count,(byte)value);
+        touch(addr,count);
+      }
+      address += count;
+      length -= count;
+    }
+    cpu.memoryChanged();
+  }
+
+  /**
+   * Copies memory upwards a byte at a time as readByte and writeByte would, so a destination
+   * just above the source repeats the bytes before it.
+   */
+  public void copy(int from, int to, int length) {
+    while (length > 0) {
+      from &= 0xffff;
+      to &= 0xffff;
+      int count = Math.min(length,0x1000 - Math.max(from & 0x0fff,to & 0x0fff));
+      int source = readMap[from >> 12];
+      int dest = writeMap[to >> 12];
+      if (dest != -1) {
+        if (cpu.vis20k && source>=0x3000 && source<0x8000) source+=vidbank;
+        if (cpu.vis20k && dest>=0x3000 && dest<0x8000) dest+=vidbank;
+        source = source + (from & 0x0fff);
+        dest = dest + (to & 0x0fff);
+        if (dest <= source || dest >= source + count)
+          System.arraycopy(mem,source,mem,dest,count);
+        else
+          for (int i = 0; i < count; i++)
+            mem[dest + i] = mem[source + i];
+        touch(dest,count);
+      }
+      from += count;
+      to += count;
+      length -= count;
+    }
+    cpu.memoryChanged();
+  }
+
+  /** Copies bytes from memory to a buffer as readByte would, a 4K page at a time */
+  public void read(int address, ByteBuffer data, int length) {
+    while (length > 0) {
+      address &= 0xffff;
+      int count = Math.min(length,0x1000 - (address & 0x0fff));
+      int addr = readMap[address >> 12];
+      if (cpu.vis20k && addr>=0x3000 && addr<0x8000) addr+=vidbank;
+      data.put(mem,addr + (address & 0x0fff),count);
+      address += count;
+      length -= count;
+    }
+  }
   
   public void setOSROM(byte[] value) {
 	loadROM(0x0c,value);
@@ -64,6 +188,7 @@ public class PC128SMemory extends DynamicMemory {
   public void loadROM(int slot, byte[] value) {
     int start = getMem(BASE_ROM + (slot & 0x0f),0x4000);
     System.arraycopy(value,0,mem,start,Math.min(value.length,0x4000));
+    touch(start,0x4000);
   }
   
   public void selectROM(int val) {
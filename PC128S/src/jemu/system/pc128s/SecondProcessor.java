@@ -0,0 +1,113 @@
+package jemu.system.pc128s;
+
+import jemu.core.cpu.*;
+import jemu.core.device.*;
+import jemu.core.device.io.*;
+
+/**
+ * A 6502 second processor on the Tube: a 65C12 core at 4MHz with 64K of RAM, and the 2K
+ * client ROM at 0xf800 from reset until the first access to the Tube registers at
+ * 0xfef8..0xfeff pages it out. Writes always go to RAM, so the client can copy itself
+ * beneath the ROM.
+ *
+ * It runs on a thread of its own, meeting the host only through the Tube, which holds it
+ * while the host keeps it in reset and restarts it whenever the host is reset. Its state is
+ * not part of the host's snapshots, so a restored state restarts it too.
+ *
+ * @author
+ */
+public class SecondProcessor extends Device implements Runnable {
+
+  public static final int CYCLES_PER_SECOND = 4000000;
+
+  protected static final int IRQ_MASK = 0x00001;
+  protected static final int NMI_MASK = 0x10000;
+  protected static final int SYNC     = 16;       // Cycles between syncs with the host
+
+  protected static final int TUBE_START = 0xfef8;
+  protected static final int TUBE_END   = 0xff00;
+  protected static final int ROM_START  = 0xf800;
+
+  protected MC65C12 cpu = new MC65C12(CYCLES_PER_SECOND);
+  protected byte[] ram = new byte[0x10000];
+  protected byte[] rom;
+  protected boolean romIn = true;
+  protected Tube tube;
+  protected Thread thread = null;
+  protected int syncCount = SYNC;
+
+  public SecondProcessor(Tube tube, byte[] rom) {
+    super("6502 Second Processor");
+    this.tube = tube;
+    this.rom = rom;
+    cpu.setMemoryDevice(this);
+    cpu.setCycleDevice(this);
+    tube.setParasite(cpu,IRQ_MASK,NMI_MASK);
+  }
+
+  public Processor getProcessor() {
+    return cpu;
+  }
+
+  public void start() {
+    thread = new Thread(this,"Second Processor");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Closes the Tube and waits for the thread to end */
+  public void dispose() {
+    tube.close();
+    cpu.stop();
+    try {
+      if (thread != null && thread != Thread.currentThread())
+        thread.join();
+    } catch (InterruptedException e) {
+      e.printStackTrace();
+    }
+  }
+
+  public void run() {
+    try {
+      while (tube.holdParasite()) {
+        romIn = true;
+        cpu.resume();
+        cpu.reset();
+        cpu.run();
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    } finally {
+      tube.close();     // The host never waits for a processor which has gone
+    }
+  }
+
+  public void cycle() {
+    if (--syncCount <= 0) {
+      syncCount = SYNC;
+      if (!tube.syncParasite())
+        cpu.stop();
+    }
+  }
+
+  public int readByte(int address) {
+    address &= 0xffff;
+    if (address >= TUBE_START && address < TUBE_END) {
+      romIn = false;
+      return tube.readParasite(address);
+    }
+    return (romIn && address >= ROM_START ? rom[address - ROM_START] : ram[address]) & 0xff;
+  }
+
+  public int writeByte(int address, int value) {
+    address &= 0xffff;
+    if (address >= TUBE_START && address < TUBE_END) {
+      romIn = false;
+      tube.writeParasite(address,value);
+    }
+    else
+      ram[address] = (byte)value;
+    return value & 0xff;
+  }
+
+}
@@ -1,6 +1,7 @@
 package jemu.system.pc128s;
 
 import java.awt.Rectangle;
+import java.nio.ByteBuffer;
 
 import jemu.core.device.crtc.Basic6845;
 import jemu.core.device.crtc.CRTCListener;
@@ -132,6 +133,42 @@ public class Video extends MonitorRenderer implements CRTCListener {
     }
   }
   
+  @Override
+  public void saveState(ByteBuffer buffer) {
+    super.saveState(buffer);
+    putInts(buffer,palette[0]);
+    putInts(buffer,palette[1]);
+    putInts(buffer,new int[] { pal == palette[0] ? 0 : 1, selectedMap, crtcMask, selCursorMask,
+      cursorMask, cycleCount, addMA, index, scanStart, rowAdd });
+    putBoolean(buffer,teletext);
+    putBoolean(buffer,large);
+  }
+  
+  @Override
+  public void loadState(ByteBuffer buffer) {
+    super.loadState(buffer);
+    getInts(buffer,palette[0]);
+    getInts(buffer,palette[1]);
+    int[] values = new int[10];
+    getInts(buffer,values);
+    pal = palette[values[0]];
+    selectedMap = values[1];
+    map = large ? fullMaps[selectedMap] : halfMaps[selectedMap];
+    crtcMask = values[2];
+    selCursorMask = values[3];
+    cursorMask = values[4];
+    cycleCount = values[5];
+    addMA = values[6];
+    teletext = getBoolean(buffer);
+    if (getBoolean(buffer) == large) {
+      index = values[7];
+      scanStart = values[8];
+      rowAdd = values[9];
+    }
+    else
+      index = scanStart = 0;   // Positions are for the other display size
+  }
+  
   public void setMemory(byte[] value) {
     memory = value;
   }
@@ -161,28 +198,31 @@ public class Video extends MonitorRenderer implements CRTCListener {
           data = memory[maTranslate[ma]|vidbank] & 0xff;
       }
     }
-    if (rendering && monitorLine >= 0 && monitorLine < 270 && hPos >= 0x94000 && hPos < 0x394000) {
-      if (teletext) {
-        if ((cycleCount & 0x01) == 0)
-          saa.setPixels(pixels,index,0,pixPerCycle);
-        else
-          saa.setPixels(pixels,index,pixPerCycle,pixPerCycle << 1);
-      }
-      else if (crtc.hDisp) {
-        if ((crtc.ra & 0x08) == 0) {
-          byte[] pals = map[data];
-          for (int pix = 0; pix < pixPerCycle; pix++)
-            pixels[index + pix] = pal[pals[pix]];
-          data |= 256;
+    if (monitorLine >= 0 && monitorLine < 270 && hPos >= 0x94000 && hPos < 0x394000) {
+      if (rendering) {
+        if (teletext) {
+          if ((cycleCount & 0x01) == 0)
+            saa.setPixels(pixels,index,0,pixPerCycle);
+          else
+            saa.setPixels(pixels,index,pixPerCycle,pixPerCycle << 1);
+        }
+        else if (crtc.hDisp) {
+          if ((crtc.ra & 0x08) == 0) {
+            byte[] pals = map[data];
+            for (int pix = 0; pix < pixPerCycle; pix++)
+              pixels[index + pix] = pal[pals[pix]];
+            data |= 256;
+          }
+          else
+            System.arraycopy(BLANK_8,0,pixels,index,pixPerCycle);
         }
         else
           System.arraycopy(BLANK_8,0,pixels,index,pixPerCycle);
+        if ((cursorMask & 0x01) != 0)
+          for (int i = 0; i < 8; i++)
+            pixels[index + i] ^= 0xffffff;
       }
-      else
-        System.arraycopy(BLANK_8,0,pixels,index,pixPerCycle);
-      if ((cursorMask & 0x01) != 0)
-        for (int i = 0; i < 8; i++)
-          pixels[index + i] ^= 0xffffff;
+      // Kept when not rendering too, so the state does not depend on the frames skipped
       index += pixPerCycle;
     }
     cycleCount++;
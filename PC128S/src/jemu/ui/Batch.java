@@ -0,0 +1,125 @@
+package jemu.ui;
+
+import java.io.*;
+import jemu.core.cpu.*;
+import jemu.core.device.*;
+
+/**
+ * Runs a computer without a window with its console on the standard streams, for batch jobs
+ * which only need text results. Characters read by the operating system come from standard
+ * input, and the text it writes goes to standard output, without the VDU control codes and
+ * their parameters unless -raw is given. Files given, such as disc images, are loaded first.
+ *
+ * The run ends once the input has ended and the operating system reads another character,
+ * or when the cycles given have run, with exit code 2.
+ *
+ * Files in the directory given by -host are served in place of those on disc. With -hle,
+ * known ROM routines run in Java, charged the percentage given of the cycles of their code.
+ * With -clock, the processor runs the given number of times as fast as the other devices,
+ * and the cycles counted are still those of the devices. With -tube, a second processor is
+ * connected through the Tube, running on a thread of its own.
+ *
+ * Usage: Batch [-computer name] [-cycles count] [-raw] [-host directory] [-hle percent]
+ *   [-clock multiplier] [-tube] [file ...]
+ *
+ * @author
+ */
+public class Batch {
+
+  public static final long CYCLES = 600L * 2000000;   // Ten minutes at 2MHz
+  public static final int SLICE   = 40000;
+
+  /** Passes on the printable characters written to the VDU, with a newline for each LF */
+  public static class TextOutput extends FilterOutputStream {
+
+    // Number of parameters following each VDU control code
+    protected static final int[] PARAMETERS = {
+      0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+      0, 1, 2, 5, 0, 0, 1, 9, 8, 5, 0, 0, 4, 4, 0, 2
+    };
+
+    protected int skip = 0;
+
+    public TextOutput(OutputStream out) {
+      super(out);
+    }
+
+    public void write(int value) throws IOException {
+      value &= 0xff;
+      if (skip > 0)
+        skip--;
+      else if (value < PARAMETERS.length) {
+        skip = PARAMETERS[value];
+        if (value == 10)
+          out.write('\n');
+      }
+      else if (value != 127)
+        out.write(value);
+    }
+
+  }
+
+  public static void main(String[] args) throws Exception {
+    System.setProperty("java.awt.headless","true");
+    // The emulator writes its own messages to standard output
+    PrintStream stdout = System.out;
+    System.setOut(System.err);
+    String name = "PC128S";
+    long cycles = CYCLES;
+    boolean raw = false;
+    String host = null;
+    int hle = -1;
+    int clock = 1;
+    boolean tube = false;
+    int first = 0;
+    for (; first < args.length && args[first].startsWith("-"); first++) {
+      if (args[first].equals("-computer") && first + 1 < args.length)
+        name = args[++first];
+      else if (args[first].equals("-cycles") && first + 1 < args.length)
+        cycles = Long.parseLong(args[++first]);
+      else if (args[first].equals("-raw"))
+        raw = true;
+      else if (args[first].equals("-host") && first + 1 < args.length)
+        host = args[++first];
+      else if (args[first].equals("-hle") && first + 1 < args.length)
+        hle = Integer.parseInt(args[++first]);
+      else if (args[first].equals("-clock") && first + 1 < args.length)
+        clock = Integer.parseInt(args[++first]);
+      else if (args[first].equals("-tube"))
+        tube = true;
+      else {
+        System.err.println("Usage: Batch [-computer name] [-cycles count] [-raw] " +
+          "[-host directory] [-hle percent] [-clock multiplier] [-tube] [file ...]");
+        System.exit(1);
+      }
+    }
+    Computer computer = Farm.createComputer(name);
+    computer.setCoprocessor(tube);
+    for (int i = first; i < args.length; i++)
+      computer.loadFile(Computer.TYPE_UNKNOWN,new File(args[i]).getAbsolutePath());
+    if (host != null)
+      computer.setHostDirectory(new File(host).getAbsolutePath());
+    if (hle != -1) {
+      computer.setHighLevelCycles(hle);
+      computer.setHighLevel(true);
+    }
+    computer.setClockMultiplier(clock);
+    final Processor cpu = computer.getProcessor();
+    InputStream in = new FilterInputStream(System.in) {
+      public int read() throws IOException {
+        int result = super.read();
+        if (result == -1)
+          cpu.stop();
+        return result;
+      }
+    };
+    OutputStream out = new BufferedOutputStream(raw ? (OutputStream)stdout : new TextOutput(stdout));
+    computer.setConsole(out,in);
+    long end = cpu.getCycles() + cycles;
+    while (!cpu.isStopped() && cpu.getCycles() < end)
+      cpu.runUntil(Math.min(cpu.getCycles() + SLICE,end));
+    out.flush();
+    System.exit(cpu.isStopped() ? 0 : 2);
+  }
+
+}
@@ -7,6 +7,7 @@ import jemu.core.device.FileDescriptor;
 import jemu.core.device.floppy.*;
 import jemu.util.diss.*;
 import java.awt.*;
+import java.awt.datatransfer.*;
 import java.awt.event.*;
 import java.applet.*;
 import java.net.*;
@@ -30,17 +31,29 @@ public class JEMU extends Applet implements KeyListener, MouseListener, ItemList
 
   protected Computer computer = null;
 
+  protected static final int[] CLOCK_MULTIPLIERS = { 1, 2, 4, 8 };
+  protected static final String[] CLOCK_NAMES = { "1x", "2x", "4x", "8x" };
+
   protected boolean isStandalone = false;
   protected Display display = new Display();
   protected Debugger debug = null;
   protected JComboBox cbGameChooser = new JComboBox();
   protected JButton bReset = new JButton("Reset");
+  protected JToggleButton bWarp = new JToggleButton("Warp");
+  protected JToggleButton bTurbo = new JToggleButton("Turbo Disc");
+  protected JComboBox cbClock = new JComboBox(CLOCK_NAMES);
+  protected JButton bSave = new JButton("Save State");
+  protected JButton bRewind = new JButton("Rewind");
+  protected JToggleButton bRecord = new JToggleButton("Record");
+  protected JButton bPaste = new JButton("Paste");
   protected boolean started = false;
   protected boolean large = true;
   protected Thread focusThread = null;
   protected Color background;
   protected boolean gotGames = false;
   protected JFileChooser fileChooser;
+  protected JFileChooser stateChooser;
+  protected JFileChooser inputChooser;
 
   public String getParameter(String key, String def) {
     return isStandalone ? System.getProperty(key, def) :
@@ -73,6 +86,10 @@ public class JEMU extends Applet implements KeyListener, MouseListener, ItemList
       boolean pause = Util.getBoolean(getParameter("PAUSE","false"));
       large = Util.getBoolean(getParameter("LARGE","true"));
       System.out.println("DEBUG=" + debug + ", PAUSE=" + pause + ", LARGE=" + large);
+      int clock = Util.getInt(getParameter("CLOCK","1"));
+      for (int i = 0; i < CLOCK_MULTIPLIERS.length; i++)
+        if (CLOCK_MULTIPLIERS[i] == clock)
+          cbClock.setSelectedIndex(i);
       if (computer == null)
         setComputer(getParameter("COMPUTER",Computer.DEFAULT_COMPUTER),!(debug || pause));
       else if (!(debug || pause))
@@ -115,6 +132,38 @@ public class JEMU extends Applet implements KeyListener, MouseListener, ItemList
         bReset.addActionListener(this);
         bReset.setFocusable(false);
         bottom.add(bReset);
+        bWarp.addActionListener(this);
+        bWarp.setFocusable(false);
+        bottom.add(bWarp);
+        bTurbo.addActionListener(this);
+        bTurbo.setFocusable(false);
+        bottom.add(bTurbo);
+        label = new JLabel("CPU:");
+        label.setForeground(new Color(0,0,127));
+        bottom.add(label);
+        cbClock.addItemListener(this);
+        cbClock.setFocusable(false);
+        cbClock.setToolTipText("Runs the processor faster, with the video, timers, discs and sound at their own speed");
+        bottom.add(cbClock);
+        if (computer.getRewind() != null) {
+          bRewind.addActionListener(this);
+          bRewind.setFocusable(false);
+          bottom.add(bRewind);
+        }
+        if (isStandalone) {
+          bSave.addActionListener(this);
+          bSave.setFocusable(false);
+          bottom.add(bSave);
+          bRecord.addActionListener(this);
+          bRecord.setFocusable(false);
+          bottom.add(bRecord);
+          if (computer.isTypingSupported()) {
+            bPaste.addActionListener(this);
+            bPaste.setFocusable(false);
+            bPaste.setToolTipText("Types the clipboard, straight into the keyboard buffer with SHIFT");
+            bottom.add(bPaste);
+          }
+        }
       }
       if (bottom != null) {
         bottom.setBackground(background);
@@ -318,6 +367,17 @@ public class JEMU extends Applet implements KeyListener, MouseListener, ItemList
         System.out.println("Computer Disposed");
       }
       computer = newComputer;
+      computer.setWarp(bWarp.isSelected());
+      computer.setTurboDisc(bTurbo.isSelected());
+      computer.setClockMultiplier(CLOCK_MULTIPLIERS[cbClock.getSelectedIndex()]);
+      computer.setWriteBack(Util.getBoolean(getParameter("WRITEBACK","false")));
+      computer.setWarmStart(Util.getBoolean(getParameter("WARMSTART","true")));
+      computer.setCoprocessor(Util.getBoolean(getParameter("TUBE","false")));
+      String warmCache = getParameter("WARMCACHE",null);
+      if (warmCache != null && isStandalone)
+        WarmStart.setDirectory(new File(warmCache));
+      computer.setRewindTime(Util.getInt(getParameter("REWIND","10")));
+      computer.setRunAheadFrames(Util.getInt(getParameter("RUNAHEAD","0")));
       setFullSize(large);
       computer.initialise();
       Drive[] floppies = computer.getFloppyDrives();
@@ -357,6 +417,8 @@ public class JEMU extends Applet implements KeyListener, MouseListener, ItemList
       Object item = ((JComboBox)e.getSource()).getSelectedItem();
       if (e.getSource() == cbGameChooser)
         loadFile(((FileDescriptor)item).filename);
+      else if (e.getSource() == cbClock)
+        computer.setClockMultiplier(CLOCK_MULTIPLIERS[cbClock.getSelectedIndex()]);
       else
         try {
           setComputer(((ComputerDescriptor)item).key);
@@ -409,6 +471,73 @@ public class JEMU extends Applet implements KeyListener, MouseListener, ItemList
   public void actionPerformed(ActionEvent e) {
     if (e.getSource() == bReset)
       computer.reset();
+    else if (e.getSource() == bWarp)
+      computer.setWarp(bWarp.isSelected());
+    else if (e.getSource() == bTurbo)
+      computer.setTurboDisc(bTurbo.isSelected());
+    else if (e.getSource() == bSave)
+      saveState();
+    else if (e.getSource() == bRewind)
+      computer.rewind(computer.getFrameRate());
+    else if (e.getSource() == bRecord)
+      record(bRecord.isSelected());
+    else if (e.getSource() == bPaste)
+      paste((e.getModifiers() & ActionEvent.SHIFT_MASK) != 0);
+  }
+  
+  public void paste(boolean direct) {
+    try {
+      Transferable contents = Toolkit.getDefaultToolkit().getSystemClipboard().getContents(null);
+      if (contents != null && contents.isDataFlavorSupported(DataFlavor.stringFlavor))
+        computer.typeText((String)contents.getTransferData(DataFlavor.stringFlavor),direct);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    display.requestFocus();
+  }
+  
+  public void saveState() {
+    // Taken straight away, the file is compressed and written in the background
+    Snapshot snapshot = computer.getSnapshot();
+    if (stateChooser == null) {
+      stateChooser = new JFileChooser();
+      stateChooser.setDialogTitle("Save Emulator State");
+    }
+    if (stateChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+      File file = stateChooser.getSelectedFile();
+      if (!file.getName().toLowerCase().endsWith(Snapshot.EXTENSION))
+        file = new File(file.getPath() + Snapshot.EXTENSION);
+      snapshot.write(file);
+    }
+    display.requestFocus();
+  }
+  
+  public void record(boolean value) {
+    // The log keeps the settings it was started with
+    bTurbo.setEnabled(!value);
+    cbClock.setEnabled(!value);
+    if (value)
+      computer.startRecording();
+    else {
+      InputLog log = computer.stopRecording();
+      if (log != null) {
+        if (inputChooser == null) {
+          inputChooser = new JFileChooser();
+          inputChooser.setDialogTitle("Save Input Log");
+        }
+        if (inputChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+          File file = inputChooser.getSelectedFile();
+          if (!file.getName().toLowerCase().endsWith(InputLog.EXTENSION))
+            file = new File(file.getPath() + InputLog.EXTENSION);
+          try {
+            log.write(file);
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+        }
+      }
+    }
+    display.requestFocus();
   }
   
   public void driveActiveChanged(Drive drive, boolean active) {
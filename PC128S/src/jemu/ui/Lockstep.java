@@ -0,0 +1,259 @@
+package jemu.ui;
+
+import java.io.*;
+import java.util.concurrent.*;
+import jemu.core.*;
+import jemu.core.cpu.*;
+import jemu.core.device.*;
+import jemu.core.device.memory.*;
+
+/**
+ * Runs two computers side by side on the same input log to find where they stop behaving
+ * alike, for checking that an optimised path does what the reference one does. Unless -same
+ * is given, the second computer has idle loop detection turned off, so that it interprets
+ * every instruction.
+ *
+ * Each computer runs on its own thread, and the two meet at a barrier every interval of
+ * cycles to compare a rolling hash of the processor registers, the cycle count and the pages
+ * of memory either has written since they last met, found from the page write generations.
+ * On a mismatch both are put back to the state at the last meeting that matched, the first cycle
+ * at which the hashes differ is found by bisection, and the instruction that made them differ
+ * and both states either side of it are reported.
+ *
+ * Usage: Lockstep log [-interval cycles] [-same]
+ *
+ * @author
+ */
+public class Lockstep {
+
+  public static final long INTERVAL = 40000;   // One frame
+
+  protected Replay[] replays = new Replay[2];
+  protected int[] hashes = new int[2];
+  protected int[] marks = new int[2];
+  protected long interval;
+  protected long target;
+  protected long end;
+  protected boolean finished;
+  protected boolean diverged;
+  protected Exception error;
+
+  // The state at the last meeting where the hashes matched
+  protected Snapshot[] good = { new Snapshot(), new Snapshot() };
+  protected int[] goodEvents = new int[2];
+  protected long goodCycle;
+
+  public Lockstep(InputLog log, long interval, boolean same) throws Exception {
+    this.interval = interval;
+    for (int i = 0; i < 2; i++)
+      replays[i] = new Replay(log);
+    Processor cpu = replays[1].getComputer().getProcessor();
+    if (!same && cpu instanceof MC65C12)
+      ((MC65C12)cpu).setIdleDetect(false);
+  }
+
+  /**
+   * Runs both computers to the end of the log on two threads. Returns -1 if they matched
+   * throughout, otherwise the cycle of the first meeting where they did not.
+   */
+  public long run() throws Exception {
+    for (int i = 0; i < 2; i++) {
+      replays[i].start();
+      hashes[i] = 0;
+    }
+    hash();
+    end = replays[0].getLog().getEnd();
+    saveGood();
+    target = Math.min(goodCycle + interval,end);
+    finished = diverged = false;
+    error = null;
+    final CyclicBarrier barrier = new CyclicBarrier(2,new Runnable() {
+      public void run() {
+        check();
+      }
+    });
+    Thread[] threads = new Thread[2];
+    for (int i = 0; i < 2; i++) {
+      final int index = i;
+      threads[i] = new Thread("Lockstep " + i) {
+        public void run() {
+          try {
+            while (!finished) {
+              replays[index].runTo(target);
+              barrier.await();
+            }
+          } catch (Exception e) {
+            fail(e);
+            barrier.reset();
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (int i = 0; i < 2; i++)
+      threads[i].join();
+    if (error != null)
+      throw error;
+    return diverged ? target : -1;
+  }
+
+  protected synchronized void fail(Exception e) {
+    if (error == null)
+      error = e;
+    finished = true;
+  }
+
+  // Called by the last thread to reach the barrier, while the other waits
+  protected void check() {
+    hash();
+    if (hashes[0] != hashes[1]) {
+      diverged = finished = true;
+      return;
+    }
+    saveGood();
+    if (goodCycle >= end)
+      finished = true;
+    else
+      target = Math.min(target + interval,end);
+  }
+
+  protected void saveGood() {
+    for (int i = 0; i < 2; i++) {
+      good[i].save(replays[i].getComputer());
+      goodEvents[i] = replays[i].getNextEvent();
+    }
+    goodCycle = replays[0].getComputer().getProcessor().getCycles();
+  }
+
+  protected void restoreGood() throws Exception {
+    for (int i = 0; i < 2; i++) {
+      good[i].restore(replays[i].getComputer());
+      replays[i].setNextEvent(goodEvents[i]);
+      hashes[i] = 0;
+    }
+    hash();
+  }
+
+  /**
+   * Adds the state of both computers to their rolling hashes and starts new page write
+   * generations. The pages written by either are hashed in both, as a loop replayed by idle
+   * detection does not write the values it would write unchanged.
+   */
+  protected void hash() {
+    int[][] writes = new int[2][];
+    for (int index = 0; index < 2; index++)
+      writes[index] = ((DynamicMemory)replays[index].getComputer().getMemory()).getPageWrites();
+    for (int index = 0; index < 2; index++) {
+      Computer computer = replays[index].getComputer();
+      Processor cpu = computer.getProcessor();
+      long cycles = cpu.getCycles();
+      int result = hashes[index] * 31 + (int)(cycles ^ (cycles >>> 32));
+      for (int i = 0; i < cpu.getRegisters().length; i++)
+        result = result * 31 + cpu.getRegisterValue(i);
+      DynamicMemory memory = (DynamicMemory)computer.getMemory();
+      byte[] mem = memory.getMemory();
+      for (int page = 0; page < writes[index].length; page++)
+        if (writes[0][page] > marks[0] || writes[1][page] > marks[1]) {
+          result = result * 31 + page;
+          int limit = Math.min((page + 1) << DynamicMemory.PAGE_SHIFT,mem.length);
+          for (int i = page << DynamicMemory.PAGE_SHIFT; i < limit; i++)
+            result = result * 31 + mem[i];
+        }
+      hashes[index] = result;
+    }
+    for (int index = 0; index < 2; index++)
+      marks[index] = ((DynamicMemory)replays[index].getComputer().getMemory()).mark();
+  }
+
+  /** Returns true if both computers match when run on from the last good state to a cycle */
+  protected boolean matchAt(long cycle) throws Exception {
+    restoreGood();
+    for (int i = 0; i < 2; i++)
+      replays[i].runTo(cycle);
+    hash();
+    return hashes[0] == hashes[1];
+  }
+
+  /**
+   * Finds the first cycle before bad at which the computers differ, and prints the
+   * instruction that made them differ with both states before and after it.
+   */
+  public void report(long bad, PrintStream out) throws Exception {
+    long low = goodCycle;
+    while (bad - low > 1) {
+      long mid = (low + bad) >>> 1;
+      if (matchAt(mid))
+        low = mid;
+      else
+        bad = mid;
+    }
+    matchAt(low);
+    out.println("Computers match at cycle " + low + " and differ after the next instruction:");
+    for (int i = 0; i < 2; i++) {
+      Computer computer = replays[i].getComputer();
+      out.println("  " + i + ": " + computer.getDisassembler().disassemble(computer.getMemory(),
+        new int[] { computer.getProcessor().getProgramCounter() },true,30));
+    }
+    out.println("Before:");
+    printStates(out);
+    for (int i = 0; i < 2; i++)
+      replays[i].runTo(low + 1);
+    out.println("After:");
+    printStates(out);
+    Snapshot[] after = { new Snapshot(), new Snapshot() };
+    int count = 0;
+    int first = -1;
+    for (int i = 0; i < 2; i++)
+      after[i].save(replays[i].getComputer());
+    int length = Math.min(after[0].getLength(),after[1].getLength());
+    for (int i = 0; i < length; i++)
+      if (after[0].getData()[i] != after[1].getData()[i]) {
+        count++;
+        if (first == -1)
+          first = i;
+      }
+    out.println("Saved states differ in " + count + " bytes" + (first == -1 ? "" :
+      ", the first at offset " + first) + (after[0].getLength() == after[1].getLength() ? "" :
+      ", lengths " + after[0].getLength() + " and " + after[1].getLength()));
+  }
+
+  protected void printStates(PrintStream out) {
+    for (int i = 0; i < 2; i++) {
+      Processor cpu = replays[i].getComputer().getProcessor();
+      StringBuffer state = new StringBuffer("  " + i + ": cycles=" + cpu.getCycles());
+      Register[] registers = cpu.getRegisters();
+      for (int j = 0; j < registers.length; j++) {
+        int value = cpu.getRegisterValue(j);
+        state.append(" " + registers[j].getName() + "=" +
+          (registers[j].getBits() > 8 ? Util.hex((short)value) : Util.hex((byte)value)));
+      }
+      out.println(state);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    System.setProperty("java.awt.headless","true");
+    if (args.length == 0) {
+      System.out.println("Usage: Lockstep log [-interval cycles] [-same]");
+      System.exit(1);
+    }
+    long interval = INTERVAL;
+    boolean same = false;
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].equals("-interval") && i + 1 < args.length)
+        interval = Long.parseLong(args[++i]);
+      else if (args[i].equals("-same"))
+        same = true;
+    }
+    Lockstep lockstep = new Lockstep(InputLog.read(new File(args[0])),interval,same);
+    long time = System.currentTimeMillis();
+    long bad = lockstep.run();
+    if (bad == -1)
+      System.out.println("Computers match to cycle " + lockstep.end + " in " +
+        (System.currentTimeMillis() - time) + "ms");
+    else
+      lockstep.report(bad,System.out);
+    System.exit(bad == -1 ? 0 : 2);
+  }
+
+}
@@ -0,0 +1,172 @@
+package jemu.ui;
+
+import java.io.*;
+import java.util.*;
+import jemu.core.*;
+import jemu.core.cpu.*;
+import jemu.core.device.*;
+
+/**
+ * Replays an input log without a window and as fast as possible, for benchmarks and to check
+ * that changes to the emulator do not change what it does. Every frame is rendered and a hash
+ * of each is kept, which can be written to a file or checked against one written before.
+ *
+ * Usage: Replay log [-repeat count] [-hashes file] [-check file]
+ *
+ * @author
+ */
+public class Replay {
+
+  protected Computer computer;
+  protected Display display;
+  protected InputLog log;
+  protected Vector hashes = new Vector();
+  protected long cycles;
+  protected int next;       // Index of the next event to replay
+
+  public Replay(InputLog log) throws Exception {
+    this.log = log;
+    computer = Computer.createComputer(null,log.getStart().getComputer());
+    display = new Display() {
+      public void updateImage(boolean wait) {
+        hashes.addElement(Integer.valueOf(Arrays.hashCode(getPixels())));
+      }
+    };
+    computer.setLarge(false);
+    display.setImageSize(computer.getDisplaySize(false),computer.getDisplayScale(false));
+    computer.setDisplay(display);
+    computer.setWarmStart(false);
+    computer.initialise();
+    computer.setWarp(true);
+    computer.setWarpFrameSkip(0);
+  }
+
+  /** Runs the log from its start, returning the time taken in milliseconds */
+  public long run() throws Exception {
+    long start = System.currentTimeMillis();
+    start();
+    runTo(log.getEnd());
+    return System.currentTimeMillis() - start;
+  }
+
+  /** Puts the computer back to the start of the log */
+  public void start() throws Exception {
+    hashes.removeAllElements();
+    log.restoreSettings(computer);
+    log.getStart().restore(computer);
+    cycles = log.getEnd() - computer.getProcessor().getCycles();
+    next = 0;
+    // The first frame is only partly rendered, so is the same whatever ran before
+    Arrays.fill(display.getPixels(),0xff000000);
+    computer.setFrameSkip(0);
+  }
+
+  /**
+   * Runs to the first instruction boundary on or after a cycle, replaying the events up to
+   * it. Running on later continues as if it had not stopped.
+   */
+  public void runTo(long cycle) throws Exception {
+    Processor cpu = computer.getProcessor();
+    for (; next < log.size(); next++) {
+      InputLog.Event event = log.getEvent(next);
+      if (event.cycle > cycle)
+        break;
+      cpu.runUntil(event.cycle);
+      // A processor running faster than the devices may start several instructions in a cycle
+      while (cpu.getCycles() == event.cycle && cpu.getClockCount() < event.clock)
+        cpu.step();
+      computer.replayInput(event);
+    }
+    cpu.runUntil(cycle);
+  }
+
+  public Computer getComputer() {
+    return computer;
+  }
+
+  public InputLog getLog() {
+    return log;
+  }
+
+  public int getNextEvent() {
+    return next;
+  }
+
+  /** Sets the next event to replay, after the computer has been put back to an earlier state */
+  public void setNextEvent(int value) {
+    next = value;
+  }
+
+  public Vector getHashes() {
+    return hashes;
+  }
+
+  public int getHash() {
+    return hashes.hashCode();
+  }
+
+  public void writeHashes(File file) throws IOException {
+    PrintWriter out = new PrintWriter(new FileWriter(file));
+    try {
+      for (int i = 0; i < hashes.size(); i++)
+        out.println(Util.hex(((Integer)hashes.elementAt(i)).intValue()));
+    } finally {
+      out.close();
+    }
+  }
+
+  /** Returns the first frame with a different hash to those in the file, or -1 if none */
+  public int checkHashes(File file) throws IOException {
+    LineNumberReader in = new LineNumberReader(new FileReader(file));
+    try {
+      for (int i = 0; i < hashes.size(); i++) {
+        String line = in.readLine();
+        if (line == null || !line.trim().equalsIgnoreCase(
+          Util.hex(((Integer)hashes.elementAt(i)).intValue())))
+          return i;
+      }
+      return in.readLine() == null ? -1 : hashes.size();
+    } finally {
+      in.close();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    System.setProperty("java.awt.headless","true");
+    if (args.length == 0) {
+      System.out.println("Usage: Replay log [-repeat count] [-hashes file] [-check file]");
+      System.exit(1);
+    }
+    int repeat = 1;
+    File hashFile = null;
+    File checkFile = null;
+    for (int i = 1; i < args.length - 1; i += 2) {
+      if (args[i].equals("-repeat"))
+        repeat = Integer.parseInt(args[i + 1]);
+      else if (args[i].equals("-hashes"))
+        hashFile = new File(args[i + 1]);
+      else if (args[i].equals("-check"))
+        checkFile = new File(args[i + 1]);
+    }
+    InputLog log = InputLog.read(new File(args[0]));
+    Replay replay = new Replay(log);
+    int result = 0;
+    for (int i = 0; i < repeat; i++) {
+      long time = replay.run();
+      System.out.println("Run " + (i + 1) + ": " + replay.getHashes().size() + " frames in " +
+        time + "ms, " + (replay.cycles * 1000 / Math.max(1,time) * 100 /
+        replay.computer.getProcessor().getCyclesPerSecond()) + "% of real time, hash " +
+        Util.hex(replay.getHash()));
+    }
+    if (hashFile != null)
+      replay.writeHashes(hashFile);
+    if (checkFile != null) {
+      int frame = replay.checkHashes(checkFile);
+      System.out.println(frame == -1 ? "Frames match" : "Frame " + frame + " differs");
+      if (frame != -1)
+        result = 2;
+    }
+    System.exit(result);
+  }
+
+}